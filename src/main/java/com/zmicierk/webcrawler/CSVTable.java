@@ -6,28 +6,42 @@ package com.zmicierk.webcrawler;
  * located at this address. This class also stores the total number of occurrences of all terms
  * for a given page, and also implements the compareTo method, which allows you to sort a collection of objects
  * of this class.
+ * The occurrences may be written in the dense form (a count for every term) or in the sparse form
+ * (term id:count pairs of the terms found, see {@link TermCounts}), the total is computed the same way for both.
  */
 public class CSVTable implements Comparable<CSVTable> {
     /** URL address of the current line */
     private final String urlInCSV;
-    /** Comma-separated string consisting of the number of occurrences of terms on this page */
+    /** Comma-separated string consisting of the number of occurrences of terms on this page (or id:count pairs) */
     private final String matchesStr;
     /** Total sum of the occurrences of the current line */
     private final int totalMatches;
+    /** The score by which the lines are sorted, the total sum of the occurrences unless set by setScore */
+    private double score;
 
     /**
      * Parses the input string into url and the number of occurrences, and calculates the sum of the occurrences.
-     * @param CSVLine Comma-separated string consisting of URLs and the number of occurrences of terms.
+     * @param CSVLine Comma-separated string consisting of URLs and the number of occurrences of terms
+     * (or id:count pairs, a sparse row of a page without occurrences has no fields after the URL).
      */
     public CSVTable(String CSVLine) {
         String[] words = CSVLine.split(",");
         this.urlInCSV = words[0] ;
-        this.matchesStr = CSVLine.substring(CSVLine.indexOf(","));
+        this.matchesStr = CSVLine.substring(words[0].length());
         int sum = 0;
         for (int i = 1; i < words.length; i++) {
-            sum += Integer.parseInt(words[i]);
+            sum += Integer.parseInt(words[i].substring(words[i].indexOf(':') + 1));
         }
         this.totalMatches = sum;
+        this.score = sum;
+    }
+
+    /**
+     * Returns the url address of the line (commas are replaced with comma code in Percent-encoding).
+     * @return url address of the line.
+     */
+    public String getUrl() {
+        return urlInCSV;
     }
 
     /**
@@ -47,14 +61,30 @@ public class CSVTable implements Comparable<CSVTable> {
     }
 
     /**
-     * Compares this object with the specified object for order.
+     * Return the score by which the lines are sorted.
+     * @return The score of the line.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Replaces the score by which the lines are sorted, for example with a combination of the occurrences and
+     * the link authority of the page.
+     * @param score The score of the line.
+     */
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    /**
+     * Compares this object with the specified object for order (a higher score comes first).
      * @param totalMatchesComp the object to be compared.
      * @return a negative integer, zero, or a positive integer as this object is less than, equal to,
      * or greater than the specified object.
      */
     @Override
     public int compareTo(CSVTable totalMatchesComp) {
-        int compareMatches = totalMatchesComp.getTotalMatches();
-        return compareMatches - this.totalMatches;
+        return Double.compare(totalMatchesComp.getScore(), this.score);
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.zmicierk.webcrawler;
+
+import java.util.function.IntFunction;
+
+/**
+ * The class limits the crawl by wall-clock time and by the number of downloaded bytes, and schedules the pages
+ * with the budget in mind. While more than LOW_FRACTION of the budget is left, the pages are processed in their
+ * normal order. When the budget runs low, the next page is the cheapest of the next WINDOW queued pages, where the
+ * cost of a page is estimated from the median latency and the average page size of its host (or of all pages, if
+ * the host is new), relative to what is left of the budget. The timeouts of the requests are cut to the time left,
+ * so that the crawl ends at the deadline and the top file can still be written.
+ * <p>All methods are thread-safe.</p>
+ */
+public class CrawlBudget {
+    /** Part of the budget below which the cheapest pages are preferred. */
+    private static final double LOW_FRACTION = 0.2;
+    /** The number of queued pages compared when the budget is low. */
+    static final int WINDOW = 32;
+    /** Latency assumed before any page has been loaded (in milliseconds). */
+    private static final long DEFAULT_LATENCY = 1000;
+    /** Page size assumed before any page has been loaded (in bytes). */
+    private static final long DEFAULT_SIZE = 100000;
+    /** Wall-clock time budget (in milliseconds), 0 - unlimited. */
+    private final long timeBudget;
+    /** Download budget (in bytes), 0 - unlimited. */
+    private final long byteBudget;
+    /** Latency and page size of every host. */
+    private final HostHealth hostHealth;
+    /** Time at which the crawl started (in milliseconds since the epoch). */
+    private long startTime;
+    /** The number of bytes downloaded so far. */
+    private long bytesUsed;
+    /** Total latency of the loaded pages (in milliseconds). */
+    private long totalLatency;
+    /** The number of loaded pages. */
+    private long pages;
+
+    /**
+     * Initializes the budget. The time budget starts counting when {@link #start()} is called.
+     * @param timeBudget Wall-clock time budget (in milliseconds), 0 - unlimited.
+     * @param byteBudget Download budget (in bytes), 0 - unlimited.
+     * @param hostHealth Latency and page size of every host.
+     */
+    public CrawlBudget(long timeBudget, long byteBudget, HostHealth hostHealth) {
+        this.timeBudget = timeBudget;
+        this.byteBudget = byteBudget;
+        this.hostHealth = hostHealth;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts counting the time budget.
+     */
+    public synchronized void start() {
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a loaded page.
+     * @param latency Duration of the request (in milliseconds).
+     * @param bytes Size of the content of the page (in bytes).
+     */
+    public synchronized void recordPage(long latency, long bytes) {
+        totalLatency += latency;
+        bytesUsed += bytes;
+        pages++;
+    }
+
+    /**
+     * Checks whether the time or the bytes of the budget are used up.
+     * @return true if no more pages may be requested.
+     */
+    public synchronized boolean isExhausted() {
+        return (timeBudget > 0 && timeLeft() <= 0) || (byteBudget > 0 && bytesUsed >= byteBudget);
+    }
+
+    /**
+     * Checks whether less than LOW_FRACTION of the time or of the bytes of the budget is left.
+     * @return true if the cheapest pages should be preferred.
+     */
+    public synchronized boolean isLow() {
+        return (timeBudget > 0 && timeLeft() < timeBudget * LOW_FRACTION)
+                || (byteBudget > 0 && byteBudget - bytesUsed < byteBudget * LOW_FRACTION);
+    }
+
+    /**
+     * Cuts the passed timeout to the time left in the budget.
+     * @param timeout Timeout of a request or of a wait (in milliseconds).
+     * @return The timeout, not longer than the time left (at least 1 millisecond).
+     */
+    public synchronized int capTimeout(int timeout) {
+        if (timeBudget <= 0) return timeout;
+        return (int) Math.max(1, Math.min(timeout, timeLeft()));
+    }
+
+    /**
+     * Estimates the part of the remaining budget the passed page would take.
+     * @param url Link to the page.
+     * @return Estimated cost, the sum of the estimated parts of the time left and of the bytes left.
+     */
+    public synchronized double cost(String url) {
+        String host = HostHealth.hostKeyOf(url);
+        long latency = hostHealth.latencyPercentile(host, 50);
+        if (latency < 0) latency = pages == 0 ? DEFAULT_LATENCY : totalLatency / pages;
+        long size = hostHealth.averageSize(host);
+        if (size < 0) size = pages == 0 ? DEFAULT_SIZE : bytesUsed / pages;
+        double cost = 0;
+        if (timeBudget > 0) cost += (double) latency / Math.max(1, timeLeft());
+        if (byteBudget > 0) cost += (double) size / Math.max(1, byteBudget - bytesUsed);
+        return cost;
+    }
+
+    /**
+     * Selects the cheapest of the next queued pages.
+     * @param urlAt Returns the url of the queued page at the passed offset from the head of the queue.
+     * @param count The number of queued pages.
+     * @return Offset of the cheapest of the first WINDOW pages.
+     */
+    public int selectCheapest(IntFunction<String> urlAt, int count) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int offset = 0; offset < Math.min(count, WINDOW); offset++) {
+            double cost = cost(urlAt.apply(offset));
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the time left in the budget.
+     * @return Time left (in milliseconds), may be negative.
+     */
+    private long timeLeft() {
+        return timeBudget - (System.currentTimeMillis() - startTime);
+    }
+}
@@ -0,0 +1,294 @@
+package com.zmicierk.webcrawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The class is the queue of pages for the pipelined traversal, in which the levels of the tree overlap.
+ * Every queued page is tagged with its depth, and a page of the next level can be taken as soon as it has been
+ * discovered, without waiting for the rest of the current level. Pages are always taken from the lowest
+ * non-empty level, so the order stays as close to the breadth-first order as the concurrency allows.
+ * <p>Pages are kept as ids of a {@link UrlStore}, the URL of a page is materialized when the page is taken.</p>
+ * <p>The frontier enforces the limits exactly: a page is never queued beyond the maximum depth, every page is
+ * processed only once, and a page is handed out only while the number of visited pages plus the number of pages
+ * being processed is below maxVisited. A page whose processing fails frees its place for another page.</p>
+ */
+class CrawlFrontier {
+    /** Value of the state of a page which has already been handed out. */
+    private static final int TAKEN = -1;
+    /** Value of the state of a page which has never been queued. */
+    private static final int UNKNOWN = 0;
+    /** Ids of the queued pages, indexed by depth. */
+    private final List<IdQueue> levels = new ArrayList<>();
+    /** State of every page, indexed by id: UNKNOWN, TAKEN or the depth at which the page is queued plus one. */
+    private int[] states = new int[1024];
+    /** Store holding the URLs of the pages. */
+    private final UrlStore store;
+    /** The maximum number of transitions in depth relative to the initial page. */
+    private final int maxDepth;
+    /** The maximum number of pages to visit. */
+    private final int maxVisited;
+    /** The number of pages visited at the moment. */
+    private int visited;
+    /** The number of pages handed out and not yet completed. */
+    private int inFlight;
+    /** The lowest depth which may have queued pages. */
+    private int lowestLevel;
+    /** true if a new page was found beyond the maximum depth. */
+    private boolean depthLimitReached;
+    /** true if the traversal was stopped before the frontier ran out of pages. */
+    private boolean stopped;
+    /** Crawl budget, selects the cheapest pages when it runs low (null - pages are taken in order). */
+    private CrawlBudget budget;
+
+    /**
+     * Initializes an empty frontier.
+     * @param maxDepth The maximum number of transitions in depth relative to the initial page.
+     * @param maxVisited The maximum number of pages to visit.
+     * @param store Store holding the URLs of the pages.
+     */
+    CrawlFrontier(int maxDepth, int maxVisited, UrlStore store) {
+        this.maxDepth = maxDepth;
+        this.maxVisited = maxVisited;
+        this.store = store;
+    }
+
+    /**
+     * Sets the crawl budget. When the budget runs low, the cheapest of the next pages of the lowest level
+     * is taken first.
+     * @param budget Crawl budget.
+     */
+    synchronized void setBudget(CrawlBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Queues the passed page if it is new and within the maximum depth. If the page is already queued deeper,
+     * it is moved to the passed depth, so that a page is processed at its shortest distance from the start page
+     * whenever it has not been handed out yet. The start page (depth 0) is always accepted. A page beyond the
+     * maximum depth is not added to the store.
+     * @param url Link to the page.
+     * @param depth The number of transitions from the start page to this page.
+     * @return true if the page was queued.
+     */
+    synchronized boolean offer(String url, int depth) {
+        if (depth > 0 && depth >= maxDepth) {
+            int id = store.lookup(url);
+            if (id < 0 || id >= states.length || states[id] == UNKNOWN) depthLimitReached = true;
+            return false;
+        }
+        int id = store.intern(url);
+        ensureState(id);
+        int state = states[id];
+        if (state == TAKEN || (state != UNKNOWN && state - 1 <= depth)) return false;
+        states[id] = depth + 1;
+        while (levels.size() <= depth) {
+            levels.add(new IdQueue());
+        }
+        levels.get(depth).add(id);
+        if (depth < lowestLevel) lowestLevel = depth;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Excludes the passed page from the traversal: a page which has never been queued will not be queued.
+     * @param url Link to the page.
+     */
+    synchronized void exclude(String url) {
+        int id = store.intern(url);
+        ensureState(id);
+        if (states[id] == UNKNOWN) states[id] = TAKEN;
+    }
+
+    /**
+     * Grows the array of the states to hold the passed id.
+     * @param id Id of the page.
+     */
+    private void ensureState(int id) {
+        if (id >= states.length) {
+            states = Arrays.copyOf(states, Math.max(id + 1, states.length * 2));
+        }
+    }
+
+    /**
+     * Takes the next page to process. Blocks while there are no queued pages but other pages are still being
+     * processed (they may discover new ones), or while the visit limit is taken up by pages being processed.
+     * @return Queued page, or null if the traversal is finished.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    synchronized Entry take() throws InterruptedException {
+        while (true) {
+            if (stopped || visited >= maxVisited) return null;
+            if (visited + inFlight < maxVisited) {
+                Entry entry = poll();
+                if (entry != null) {
+                    inFlight++;
+                    return entry;
+                }
+            }
+            if (inFlight == 0) return null;
+            wait();
+        }
+    }
+
+    /**
+     * Marks a page taken by {@link #take()} as processed.
+     * @param fetched true if the page was visited, false if it could not be loaded.
+     */
+    synchronized void complete(boolean fetched) {
+        inFlight--;
+        if (fetched) visited++;
+        notifyAll();
+    }
+
+    /**
+     * Stops the traversal, all waiting and following calls of {@link #take()} return null.
+     */
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of pages visited at the moment.
+     * @return The number of pages visited at the moment.
+     */
+    synchronized int getVisited() {
+        return visited;
+    }
+
+    /**
+     * Returns the number of queued pages which have not been handed out yet.
+     * @return The number of queued pages.
+     */
+    synchronized int getQueued() {
+        int queued = 0;
+        for (IdQueue level : levels) {
+            queued += level.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Checks whether a new page was found beyond the maximum depth.
+     * @return true if the traversal was cut by the maximum depth.
+     */
+    synchronized boolean isDepthLimitReached() {
+        return depthLimitReached;
+    }
+
+    /**
+     * Removes the next page from the lowest non-empty level, skipping entries which were moved to a lower level.
+     * @return Queued page, or null if there are no queued pages.
+     */
+    private Entry poll() {
+        for (int depth = lowestLevel; depth < levels.size(); depth++) {
+            IdQueue level = levels.get(depth);
+            while (level.size() > 0) {
+                if (budget != null && budget.isLow()) {
+                    level.moveToHead(budget.selectCheapest(k -> store.get(level.peek(k)), level.size()));
+                }
+                int id = level.poll();
+                if (states[id] == depth + 1) {
+                    states[id] = TAKEN;
+                    lowestLevel = depth;
+                    return new Entry(id, store.get(id), depth);
+                }
+            }
+        }
+        lowestLevel = levels.size();
+        return null;
+    }
+
+    /**
+     * A page handed out by the frontier together with its depth.
+     */
+    static final class Entry {
+        /** Id of the page in the store. */
+        final int id;
+        /** Link to the page. */
+        final String url;
+        /** The number of transitions from the start page to this page. */
+        final int depth;
+
+        /**
+         * Initializes the entry.
+         * @param id Id of the page in the store.
+         * @param url Link to the page.
+         * @param depth The number of transitions from the start page to this page.
+         */
+        Entry(int id, String url, int depth) {
+            this.id = id;
+            this.url = url;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * First-in first-out queue of ids in a growable int array.
+     */
+    private static final class IdQueue {
+        /** Queued ids, from head to tail. */
+        private int[] ids = new int[64];
+        /** Position of the first queued id. */
+        private int head;
+        /** Position after the last queued id. */
+        private int tail;
+
+        /**
+         * Appends an id to the queue, compacting or growing the array when its end is reached.
+         * @param id Id of the page.
+         */
+        void add(int id) {
+            if (tail == ids.length) {
+                if (head > ids.length / 2) {
+                    System.arraycopy(ids, head, ids, 0, tail - head);
+                } else {
+                    int[] grown = new int[ids.length * 2];
+                    System.arraycopy(ids, head, grown, 0, tail - head);
+                    ids = grown;
+                }
+                tail -= head;
+                head = 0;
+            }
+            ids[tail++] = id;
+        }
+
+        /**
+         * Returns the id at the passed offset from the head of the queue without removing it.
+         * @param offset Offset from the head.
+         * @return Id of the page.
+         */
+        int peek(int offset) {
+            return ids[head + offset];
+        }
+
+        /**
+         * Exchanges the first id of the queue with the id at the passed offset.
+         * @param offset Offset from the head.
+         */
+        void moveToHead(int offset) {
+            int id = ids[head + offset];
+            ids[head + offset] = ids[head];
+            ids[head] = id;
+        }
+
+        /**
+         * Removes the first id of the queue.
+         * @return The first id.
+         */
+        int poll() {
+            return ids[head++];
+        }
+
+        /**
+         * Returns the number of queued ids.
+         * @return The number of queued ids.
+         */
+        int size() {
+            return tail - head;
+        }
+    }
+}
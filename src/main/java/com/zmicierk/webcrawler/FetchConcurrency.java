@@ -0,0 +1,271 @@
+package com.zmicierk.webcrawler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+
+/**
+ * The class limits the number of fetches in flight and adapts the limit to the behaviour of the servers with
+ * additive increase and multiplicative decrease (AIMD), as TCP does with its congestion window.
+ * <p>The limit starts at 1 and grows by 1 with every successful fetch (slow start, doubling per round trip) until
+ * the first sign of congestion, then by 1 / limit per fetch (one per round trip). It is halved when a server
+ * answers 429 or 503, when a fetch times out, when the share of failed fetches among the recent ones exceeds
+ * ERROR_RATE, or when the 99th percentile of the recent latencies exceeds P99_FACTOR times the lowest one seen.
+ * A burst of failures caused by one congested round trip cuts the limit once: only a fetch started after the last
+ * cut can cut it again. The limit never exceeds the number of workers which can fetch at once, and it only grows
+ * while the crawl uses it, as TCP grows its window only while the window limits the sending: in slow start while
+ * more than half of the limit has been in flight at once since the last cut, afterwards while all of it has.</p>
+ * <p>A Retry-After header on 429 or 503 pauses the new fetches from that host until the requested time.</p>
+ * <p>Every change of the limit is printed to the standard error stream with its reason, the counters are
+ * summarized by {@link #summary()}.</p>
+ * <p>All methods are thread-safe.</p>
+ */
+public class FetchConcurrency {
+    /** The number of recent fetches from which the latency percentile and the error rate are computed. */
+    private static final int SAMPLES = 100;
+    /** The number of latencies needed before the percentile is checked. */
+    private static final int MIN_SAMPLES = 50;
+    /** The number of successful fetches between two checks of the latency percentile. */
+    private static final int CHECK_INTERVAL = 20;
+    /** The limit is cut when the 99th percentile of the latency exceeds this multiple of the lowest one seen. */
+    private static final double P99_FACTOR = 2.0;
+    /** A rise of the 99th percentile below this (in milliseconds) is taken for noise. */
+    private static final long MIN_P99_RISE = 100;
+    /** The limit is cut when the share of failed fetches among the recent ones exceeds this. */
+    private static final double ERROR_RATE = 0.2;
+    /** Factor applied to the limit on congestion. */
+    private static final double DECREASE_FACTOR = 0.5;
+    /** The longest pause of a host honoured for a Retry-After header (in milliseconds). */
+    private static final long MAX_PAUSE = 120000;
+    /** The highest limit: the number of workers which can fetch at once. */
+    private final int maxLimit;
+    /** The current limit of fetches in flight (the integer part is used). */
+    private double limit = 1;
+    /** true until the first cut of the limit. */
+    private boolean slowStart = true;
+    /** The number of fetches in flight. */
+    private int inFlight;
+    /** The highest number of fetches in flight at once since the last cut of the limit. */
+    private int busy;
+    /** Time of the last cut of the limit (System.nanoTime). */
+    private long lastDecrease = Long.MIN_VALUE;
+    /** Ring buffer of the latencies of the recent successful fetches (in milliseconds). */
+    private final long[] latencies = new long[SAMPLES];
+    /** The number of latencies recorded so far. */
+    private long latencyCount;
+    /** The lowest 99th percentile of the latency seen so far (in milliseconds). */
+    private long lowestP99 = Long.MAX_VALUE;
+    /** Ring buffer of the outcomes of the recent fetches, true for a failure of the host. */
+    private final boolean[] outcomes = new boolean[SAMPLES];
+    /** The number of outcomes recorded so far. */
+    private long outcomeCount;
+    /** The number of failures in the outcome buffer. */
+    private int recentFailures;
+    /** Time until which the new fetches from every paused host wait (System.currentTimeMillis). */
+    private final Map<String, Long> pausedUntil = new HashMap<>();
+    /** The number of completed fetches. */
+    private long fetches;
+    /** The number of cuts of the limit. */
+    private long decreases;
+    /** The number of 429 and 503 answers. */
+    private long throttled;
+    /** The number of timed out fetches. */
+    private long timeouts;
+    /** The number of other failures of the hosts. */
+    private long errors;
+    /** Total time the fetches waited for a free slot or a paused host (in milliseconds). */
+    private long waited;
+    /** The highest limit reached. */
+    private int peak = 1;
+
+    /**
+     * Initializes the controller with the limit of 1.
+     * @param maxLimit The highest limit: the number of workers which can fetch at once.
+     * @throws Exception if maxLimit is lower than 1.
+     */
+    public FetchConcurrency(int maxLimit) throws Exception {
+        if (maxLimit < 1) throw new Exception("maxLimit must be bigger than 0");
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Waits until a fetch from the passed host may start: fewer fetches than the limit are in flight and the host
+     * is not paused.
+     * @param host Host of the page.
+     * @return Ticket of the fetch, passed to {@link #release}.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized long acquire(String host) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        while (true) {
+            long now = System.currentTimeMillis();
+            Long paused = pausedUntil.get(host);
+            if (paused != null && paused <= now) {
+                pausedUntil.remove(host);
+                paused = null;
+            }
+            if (paused == null && inFlight < (int) limit) {
+                inFlight++;
+                busy = Math.max(busy, inFlight);
+                waited += now - begin;
+                return System.nanoTime();
+            }
+            wait(paused == null ? 0 : paused - now);
+        }
+    }
+
+    /**
+     * Records the outcome of a fetch started by {@link #acquire} and adapts the limit.
+     * @param host Host of the page.
+     * @param ticket Ticket returned by acquire.
+     * @param latency Duration of the fetch (in milliseconds).
+     * @param failure The exception thrown by the fetch, null if it succeeded.
+     */
+    public synchronized void release(String host, long ticket, long latency, Exception failure) {
+        inFlight--;
+        fetches++;
+        notifyAll();
+        if (failure == null) {
+            recordOutcome(false);
+            recordLatency(latency);
+            String rise = checkLatency();
+            if (rise != null) {
+                decrease(ticket, rise);
+            } else {
+                increase();
+            }
+            return;
+        }
+        if (failure instanceof FailingHttpStatusCodeException) {
+            int status = ((FailingHttpStatusCodeException) failure).getStatusCode();
+            if (status == 429 || status == 503) {
+                throttled++;
+                recordOutcome(true);
+                long retryAfter = Math.min(MAX_PAUSE, HostHealth.retryAfter(failure));
+                if (retryAfter > 0) pausedUntil.put(host, System.currentTimeMillis() + retryAfter);
+                decrease(ticket, status + " from " + host
+                        + (retryAfter > 0 ? ", paused for " + retryAfter + " ms" : ""));
+                return;
+            }
+        }
+        if (HostHealth.isTimeout(failure)) {
+            timeouts++;
+            recordOutcome(true);
+            decrease(ticket, "timeout of " + host);
+            return;
+        }
+        if (!HostHealth.isHostFailure(failure)) return;
+        errors++;
+        recordOutcome(true);
+        if (Math.min(outcomeCount, SAMPLES) >= SAMPLES / 10
+                && recentFailures > ERROR_RATE * Math.min(outcomeCount, SAMPLES)) {
+            decrease(ticket, "error rate " + 100 * recentFailures / Math.min(outcomeCount, SAMPLES) + "%");
+        }
+    }
+
+    /**
+     * Adds the outcome of a fetch to the ring buffer.
+     * @param failed true for a failure of the host.
+     */
+    private void recordOutcome(boolean failed) {
+        int slot = (int) (outcomeCount++ % SAMPLES);
+        if (outcomeCount > SAMPLES && outcomes[slot]) recentFailures--;
+        outcomes[slot] = failed;
+        if (failed) recentFailures++;
+    }
+
+    /**
+     * Adds the latency of a successful fetch to the ring buffer.
+     * @param latency Duration of the fetch (in milliseconds).
+     */
+    private void recordLatency(long latency) {
+        latencies[(int) (latencyCount++ % SAMPLES)] = latency;
+    }
+
+    /**
+     * Every CHECK_INTERVAL successful fetches compares the 99th percentile of the recent latencies with the lowest
+     * one seen.
+     * @return Description of the rise if the percentile rose too much, otherwise null.
+     */
+    private String checkLatency() {
+        if (latencyCount < MIN_SAMPLES || latencyCount % CHECK_INTERVAL != 0) return null;
+        long[] sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, SAMPLES));
+        Arrays.sort(sorted);
+        long p99 = sorted[(int) Math.ceil(0.99 * sorted.length) - 1];
+        if (p99 < lowestP99) {
+            lowestP99 = p99;
+            return null;
+        }
+        if (p99 > P99_FACTOR * lowestP99 && p99 - lowestP99 >= MIN_P99_RISE) {
+            return "p99 latency " + p99 + " ms, lowest " + lowestP99 + " ms";
+        }
+        return null;
+    }
+
+    /**
+     * Raises the limit after a successful fetch: by 1 in slow start, otherwise by 1 / limit. A limit which the crawl
+     * does not use is not raised.
+     */
+    private void increase() {
+        int before = (int) limit;
+        if (slowStart ? before >= 2 * busy : busy < before) return;
+        limit = Math.min(maxLimit, limit + (slowStart ? 1 : 1 / limit));
+        if ((int) limit != before) {
+            peak = Math.max(peak, (int) limit);
+            System.err.println("Concurrency " + before + " -> " + (int) limit + ": healthy");
+            notifyAll();
+        }
+    }
+
+    /**
+     * Halves the limit, unless the fetch started before the last cut (the cut already answered its round trip).
+     * @param ticket Ticket of the fetch which saw the congestion.
+     * @param reason Description of the congestion.
+     */
+    private void decrease(long ticket, String reason) {
+        if (ticket < lastDecrease) return;
+        int before = (int) limit;
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        slowStart = false;
+        lastDecrease = System.nanoTime();
+        busy = inFlight;
+        decreases++;
+        System.err.println("Concurrency " + before + " -> " + (int) limit + ": " + reason);
+    }
+
+    /**
+     * Returns the current limit of fetches in flight.
+     * @return The limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of fetches in flight.
+     * @return The number of fetches started and not yet released.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of cuts of the limit.
+     * @return The number of cuts.
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * Describes the work of the controller.
+     * @return One line: the current, highest and peak limit, the completed fetches, the cuts and their causes,
+     * the time spent waiting.
+     */
+    public synchronized String summary() {
+        return String.format("Concurrency limit %d (max %d, peak %d), %d fetches, %d cuts (%d throttled, %d timeouts, "
+                        + "%d errors), waited %d ms", (int) limit, maxLimit, peak, fetches, decreases, throttled,
+                timeouts, errors, waited);
+    }
+}
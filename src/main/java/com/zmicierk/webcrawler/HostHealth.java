@@ -0,0 +1,402 @@
+package com.zmicierk.webcrawler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * The class keeps track of the behaviour of every host visited during the crawl.
+ * For every host it records the latency of the recent successful requests and derives the timeout of the next
+ * request from their percentile, so a fast host no longer costs the full global timeout when it stops responding.
+ * It decides which failures are worth retrying and how long to back off, and implements a circuit breaker:
+ * after several consecutive failures the host is considered dead and its pages are skipped without a request
+ * until a cooldown period has passed, then a single probe request decides whether the host is back.
+ */
+public class HostHealth {
+    /** The number of consecutive failures after which the circuit of a host opens, unless set otherwise. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    /** The number of recent latencies kept for every host. */
+    private static final int SAMPLES = 64;
+    /** The number of latencies needed before the timeout of a host is derived from them. */
+    private static final int MIN_SAMPLES = 5;
+    /** The timeout of a host is this multiple of the 95th percentile of its latency. */
+    private static final int TIMEOUT_FACTOR = 4;
+    /** The lowest derived timeout (in milliseconds). */
+    private static final int MIN_TIMEOUT = 2000;
+    /** Delay before the first retry (in milliseconds), doubled on every next retry. */
+    private static final long BACKOFF_BASE = 500;
+    /** The longest delay before a retry (in milliseconds), also caps the Retry-After header. */
+    private static final long BACKOFF_MAX = 8000;
+    /** Time a host stays skipped after its circuit opens (in milliseconds), doubled on every reopening. */
+    private static final long COOLDOWN_BASE = 30000;
+    /** The longest time a host stays skipped (in milliseconds). */
+    private static final long COOLDOWN_MAX = 300000;
+    /** State of every host seen so far. */
+    private final Map<String, HostState> hosts = new ConcurrentHashMap<>();
+    /** Time to wait for a response from the server, the upper bound of every derived timeout. */
+    private final int timeOut;
+    /**
+     * The number of consecutive failures after which the circuit of a host opens.
+     * 0 disables the circuit breaker.
+     */
+    private final int failureThreshold;
+
+    /**
+     * Initializes the tracker.
+     * @param timeOut Time to wait for a response from the server, the upper bound of every derived timeout.
+     * @param failureThreshold The number of consecutive failures after which the circuit of a host opens
+     * (0 - never open).
+     */
+    public HostHealth(int timeOut, int failureThreshold) {
+        this.timeOut = timeOut;
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Checks whether a request to the passed host may be made now. A host with an open circuit is refused until its
+     * cooldown has passed, then exactly one probe request is allowed.
+     * @param host Host of the page.
+     * @return true if the request may be made, false if the page should be skipped.
+     */
+    public boolean allow(String host) {
+        return state(host).allow(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the timeout for the next request to the passed host: a multiple of the 95th percentile of its recent
+     * latencies, but not lower than MIN_TIMEOUT and not higher than the global timeout. Until enough latencies are
+     * known the global timeout is used.
+     * @param host Host of the page.
+     * @return Time to wait for a response from the server (in milliseconds).
+     */
+    public int timeoutFor(String host) {
+        long p95 = state(host).percentile(95);
+        if (p95 < 0) return timeOut;
+        return (int) Math.min(timeOut, Math.max(Math.min(MIN_TIMEOUT, timeOut), p95 * TIMEOUT_FACTOR));
+    }
+
+    /**
+     * Returns the timeout for the next attempt of a request to the passed host. The derived timeout only reflects
+     * the past successful latencies, so a host which became slower would time out on every attempt; an attempt
+     * after a timeout is therefore given the global timeout.
+     * @param host Host of the page.
+     * @param afterTimeout true if the previous attempt of the request timed out.
+     * @return Time to wait for a response from the server (in milliseconds).
+     */
+    public int timeoutFor(String host, boolean afterTimeout) {
+        return afterTimeout ? timeOut : timeoutFor(host);
+    }
+
+    /**
+     * Returns the passed percentile of the recent latencies of the host.
+     * @param host Host of the page.
+     * @param percentile Percentile (0 - 100).
+     * @return Latency (in milliseconds), or -1 if not enough latencies are known.
+     */
+    public long latencyPercentile(String host, int percentile) {
+        return state(host).percentile(percentile);
+    }
+
+    /**
+     * Records a successful request, closes the circuit of the host.
+     * @param host Host of the page.
+     * @param latency Duration of the request (in milliseconds).
+     */
+    public void recordSuccess(String host, long latency) {
+        state(host).success(latency);
+    }
+
+    /**
+     * Records the size of a page loaded from the host.
+     * @param host Host of the page.
+     * @param bytes Size of the content of the page (in bytes).
+     */
+    public void recordSize(String host, long bytes) {
+        state(host).size(bytes);
+    }
+
+    /**
+     * Returns the average size of the pages loaded from the host.
+     * @param host Host of the page.
+     * @return Average size (in bytes), or -1 if no page was loaded from the host.
+     */
+    public long averageSize(String host) {
+        return state(host).averageSize();
+    }
+
+    /**
+     * Records a failed request and decides whether it should be retried.
+     * Only failures of the host count towards opening its circuit; a 404 or a page which is not HTML does not.
+     * @param host Host of the page.
+     * @param e The exception thrown by the request.
+     * @param attempt The number of the failed attempt, starting from 0.
+     * @return Delay before the retry (in milliseconds), or -1 if the failure is not worth retrying.
+     */
+    public long recordFailure(String host, Exception e, int attempt) {
+        HostState state = state(host);
+        if (isHostFailure(e)) {
+            state.failure(System.currentTimeMillis(), failureThreshold);
+        } else {
+            state.otherFailure();
+        }
+        if (!isRetryable(e)) return -1;
+        long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        long retryAfter = retryAfter(e);
+        if (retryAfter > BACKOFF_MAX) return -1;
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Records a page skipped because the circuit of its host was open.
+     * @param host Host of the page.
+     */
+    public void recordSkipped(String host) {
+        state(host).skipped();
+    }
+
+    /**
+     * Describes the hosts which failed during the crawl.
+     * @return One line per failed host: host, failed requests, skipped pages, whether the circuit is open.
+     */
+    public List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, HostState> entry : new TreeMap<>(hosts).entrySet()) {
+            String line = entry.getValue().describe(now);
+            if (line != null) lines.add(entry.getKey() + ": " + line);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the key under which the state of the server of the passed url is kept: the host in lower case,
+     * followed by the port if the url specifies one, because different ports are usually different servers.
+     * @param url Link to the page.
+     * @return Host (and port) of the url, or the url itself if it can't be parsed.
+     */
+    static String hostKeyOf(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null) {
+                String host = uri.getHost().toLowerCase();
+                return uri.getPort() == -1 ? host : host + ":" + uri.getPort();
+            }
+        }
+        catch (Exception e) {
+            // fall through to the raw url
+        }
+        return url;
+    }
+
+    /**
+     * Checks whether the request failed because the host did not answer in time.
+     * @param failure The exception thrown by the request.
+     * @return true for a timeout.
+     */
+    static boolean isTimeout(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof InterruptedIOException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the failure says something about the health of the host (it did not answer in time,
+     * refused the connection, can't be resolved or answered with a server error or 429).
+     * @param e The exception thrown by the request.
+     * @return true if the failure counts towards opening the circuit of the host.
+     */
+    static boolean isHostFailure(Exception e) {
+        if (e instanceof FailingHttpStatusCodeException) {
+            int status = ((FailingHttpStatusCodeException) e).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * Checks whether the failure is transient: a timeout, a lost connection, 429 or a temporary server error.
+     * A host which can't be resolved or refuses connections, client errors and non-HTML pages are not retried.
+     * @param e The exception thrown by the request.
+     * @return true if the request should be retried.
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof FailingHttpStatusCodeException) {
+            int status = ((FailingHttpStatusCodeException) e).getStatusCode();
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        if (e instanceof UnknownHostException || e instanceof ConnectException
+                || e instanceof NoRouteToHostException) {
+            return false;
+        }
+        return e instanceof SocketTimeoutException || e instanceof IOException;
+    }
+
+    /**
+     * Reads the Retry-After header (delay in seconds or HTTP date) of a failed response.
+     * @param e The exception thrown by the request.
+     * @return The requested delay (in milliseconds), or 0 if there is none.
+     */
+    static long retryAfter(Exception e) {
+        if (!(e instanceof FailingHttpStatusCodeException)) return 0;
+        String value = ((FailingHttpStatusCodeException) e).getResponse().getResponseHeaderValue("Retry-After");
+        if (value == null) return 0;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException nfe) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the state of the passed host, creating it on first use.
+     * @param host Host of the page.
+     * @return State of the host.
+     */
+    private HostState state(String host) {
+        return hosts.computeIfAbsent(host, h -> new HostState());
+    }
+
+    /**
+     * Latencies, failure counters and circuit of one host.
+     */
+    private static final class HostState {
+        /** Ring buffer of the recent latencies (in milliseconds). */
+        private final long[] latencies = new long[SAMPLES];
+        /** The number of latencies recorded so far. */
+        private int recorded;
+        /** The number of failures of the host since its last success. */
+        private int consecutiveFailures;
+        /** The number of failed requests during the crawl. */
+        private int failed;
+        /** The number of pages skipped because the circuit was open. */
+        private int skippedPages;
+        /** Time until which the circuit is open (in milliseconds since the epoch), 0 if the circuit is closed. */
+        private long openUntil;
+        /** The current cooldown of the circuit (in milliseconds). */
+        private long cooldown = COOLDOWN_BASE;
+        /** true while the single probe request after a cooldown is in progress. */
+        private boolean probing;
+        /** Total size of the pages loaded from the host (in bytes). */
+        private long totalBytes;
+        /** The number of pages loaded from the host. */
+        private int pages;
+
+        /**
+         * Checks whether a request may be made, starts the probe request when the cooldown has passed.
+         * @param now The current time (in milliseconds since the epoch).
+         * @return true if the request may be made.
+         */
+        synchronized boolean allow(long now) {
+            if (openUntil == 0) return true;
+            if (now < openUntil || probing) return false;
+            probing = true;
+            return true;
+        }
+
+        /**
+         * Records the latency of a successful request and closes the circuit.
+         * @param latency Duration of the request (in milliseconds).
+         */
+        synchronized void success(long latency) {
+            latencies[recorded % SAMPLES] = latency;
+            recorded++;
+            consecutiveFailures = 0;
+            openUntil = 0;
+            probing = false;
+            cooldown = COOLDOWN_BASE;
+        }
+
+        /**
+         * Records a failure of the host, opens the circuit after threshold consecutive failures
+         * or reopens it with a longer cooldown if the probe request failed.
+         * @param now The current time (in milliseconds since the epoch).
+         * @param threshold The number of consecutive failures after which the circuit opens (0 - never).
+         */
+        synchronized void failure(long now, int threshold) {
+            failed++;
+            consecutiveFailures++;
+            if (probing) {
+                probing = false;
+                cooldown = Math.min(COOLDOWN_MAX, cooldown * 2);
+                openUntil = now + cooldown;
+            } else if (threshold > 0 && openUntil == 0 && consecutiveFailures >= threshold) {
+                openUntil = now + cooldown;
+            }
+        }
+
+        /**
+         * Records a failure which is not caused by the host; a probe request which got any answer closes the circuit.
+         */
+        synchronized void otherFailure() {
+            failed++;
+            if (probing) {
+                probing = false;
+                openUntil = 0;
+                consecutiveFailures = 0;
+            }
+        }
+
+        /**
+         * Records the size of a loaded page.
+         * @param bytes Size of the content of the page (in bytes).
+         */
+        synchronized void size(long bytes) {
+            totalBytes += bytes;
+            pages++;
+        }
+
+        /**
+         * Returns the average size of the loaded pages.
+         * @return Average size (in bytes), or -1 if no page was loaded.
+         */
+        synchronized long averageSize() {
+            return pages == 0 ? -1 : totalBytes / pages;
+        }
+
+        /**
+         * Records a page skipped because the circuit was open.
+         */
+        synchronized void skipped() {
+            skippedPages++;
+        }
+
+        /**
+         * Returns the passed percentile of the recent latencies.
+         * @param percentile Percentile (0 - 100).
+         * @return Latency (in milliseconds), or -1 if fewer than MIN_SAMPLES latencies are known.
+         */
+        synchronized long percentile(int percentile) {
+            int count = Math.min(recorded, SAMPLES);
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        /**
+         * Describes the failures of the host.
+         * @param now The current time (in milliseconds since the epoch).
+         * @return Description, or null if the host never failed.
+         */
+        synchronized String describe(long now) {
+            if (failed == 0 && skippedPages == 0) return null;
+            return failed + " failed requests, " + skippedPages + " skipped pages"
+                    + (openUntil > now ? ", circuit open" : "");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.zmicierk.webcrawler;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The class records the link graph of a crawl in compressed sparse row (CSR) form and ranks its pages by link
+ * authority. The nodes of the graph are the ids of a {@link UrlStore}: the processed pages and every page they link
+ * to, whether it was processed or not.
+ * <p>Every processed page adds one row: its id and the sorted, distinct ids of the pages it links to (links to
+ * itself are dropped). The targets of all rows are appended to large shared int blocks, a link costs 4 bytes and
+ * a row 12 bytes, no per-link objects are created. A row never crosses the end of a block, so its targets are one
+ * contiguous range.</p>
+ * <p>PageRank and HITS are computed over the recorded rows and their transpose (the incoming links of every node,
+ * 4 more bytes per link). Every iteration pulls the scores along the incoming links, each node is computed
+ * independently, so the nodes are processed in parallel without locking.</p>
+ * <p>Recording is thread-safe, a page must be added once. The ranking methods must not run concurrently with
+ * recording.</p>
+ */
+public class LinkGraph {
+    /** log2 of the size of a shared block. */
+    private static final int BLOCK_BITS = 20;
+    /** Size of a shared block (in ints). */
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    /** The probability of following a link in PageRank. */
+    private static final double DAMPING = 0.85;
+    /** The maximum number of iterations of PageRank and HITS. */
+    private static final int MAX_ITERATIONS = 100;
+    /** The iterations stop when the scores change less than this in total (the scores sum up to 1). */
+    private static final double TOLERANCE = 1e-9;
+    /** Int blocks holding the targets of the rows. */
+    private final List<int[]> blocks = new ArrayList<>();
+    /** Write position in the last block. */
+    private int blockPos = BLOCK_SIZE;
+    /** Id of the page of every row. */
+    private int[] rowPages = new int[1024];
+    /** Position of the targets of every row (block index shifted by BLOCK_BITS plus the offset in the block). */
+    private int[] rowPositions = new int[1024];
+    /** The number of targets of every row. */
+    private int[] rowLengths = new int[1024];
+    /** The number of rows. */
+    private int rows;
+    /** The number of links. */
+    private long edges;
+    /** The number of iterations of the last ranking. */
+    private int iterations;
+
+    /**
+     * Records the links of a processed page.
+     * @param page Id of the page.
+     * @param targets Ids of the pages it links to (may contain duplicates and the page itself).
+     */
+    public void addPage(int page, int[] targets) {
+        int[] sorted = targets.clone();
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] != page && (length == 0 || sorted[length - 1] != sorted[i])) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        synchronized (this) {
+            if (rows == rowPages.length) {
+                rowPages = Arrays.copyOf(rowPages, rows * 2);
+                rowPositions = Arrays.copyOf(rowPositions, rows * 2);
+                rowLengths = Arrays.copyOf(rowLengths, rows * 2);
+            }
+            if (blockPos + length > BLOCK_SIZE) {
+                blocks.add(new int[Math.max(BLOCK_SIZE, length)]);
+                blockPos = 0;
+            }
+            int block = blocks.size() - 1;
+            System.arraycopy(sorted, 0, blocks.get(block), blockPos, length);
+            rowPages[rows] = page;
+            rowPositions[rows] = (block << BLOCK_BITS) | blockPos;
+            rowLengths[rows] = length;
+            rows++;
+            blockPos += length;
+            edges += length;
+        }
+    }
+
+    /**
+     * Returns the number of recorded pages.
+     * @return The number of rows.
+     */
+    public synchronized int getPageCount() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of recorded links.
+     * @return The number of distinct links of all rows.
+     */
+    public synchronized long getEdgeCount() {
+        return edges;
+    }
+
+    /**
+     * Returns the number of iterations the last ranking took to converge.
+     * @return The number of iterations.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Computes the PageRank of every node: the probability that a surfer who follows a random link with the
+     * probability 0.85 and otherwise jumps to a random page is on the node. The rank of the pages without links
+     * (including the pages which were not processed) is spread over all nodes.
+     * @param nodes The number of nodes (the size of the url store).
+     * @return PageRank of every node, indexed by id, the ranks sum up to 1.
+     */
+    public double[] pageRank(int nodes) {
+        Transpose in = new Transpose(nodes);
+        double[] rank = new double[nodes];
+        double[] share = new double[nodes];
+        Arrays.fill(rank, 1.0 / nodes);
+        for (iterations = 1; iterations <= MAX_ITERATIONS; iterations++) {
+            double dangling = IntStream.range(0, nodes).parallel().mapToDouble(u -> {
+                if (in.outDegree[u] == 0) return rank[u];
+                share[u] = rank[u] / in.outDegree[u];
+                return 0;
+            }).sum();
+            double base = (1 - DAMPING) / nodes + DAMPING * dangling / nodes;
+            double delta = IntStream.range(0, nodes).parallel().mapToDouble(v -> {
+                double sum = 0;
+                for (int i = in.offsets[v]; i < in.offsets[v + 1]; i++) {
+                    sum += share[in.sources[i]];
+                }
+                double next = base + DAMPING * sum;
+                double change = Math.abs(next - rank[v]);
+                rank[v] = next;
+                return change;
+            }).sum();
+            if (delta < TOLERANCE) break;
+        }
+        iterations = Math.min(iterations, MAX_ITERATIONS);
+        return rank;
+    }
+
+    /**
+     * Computes the HITS authority of every node: a page is a good authority if good hubs link to it, and a good
+     * hub if it links to good authorities.
+     * @param nodes The number of nodes (the size of the url store).
+     * @return Authority of every node, indexed by id, the authorities sum up to 1 (all 0 without links).
+     */
+    public double[] hits(int nodes) {
+        Transpose in = new Transpose(nodes);
+        double[] authority = new double[nodes];
+        double[] previous = new double[nodes];
+        double[] hub = new double[nodes];
+        Arrays.fill(hub, 1.0);
+        for (iterations = 1; iterations <= MAX_ITERATIONS; iterations++) {
+            IntStream.range(0, nodes).parallel().forEach(v -> {
+                double sum = 0;
+                for (int i = in.offsets[v]; i < in.offsets[v + 1]; i++) {
+                    sum += hub[in.sources[i]];
+                }
+                authority[v] = sum;
+            });
+            if (!normalize(authority)) break;
+            Arrays.fill(hub, 0.0);
+            IntStream.range(0, rows).parallel().forEach(row -> {
+                int[] block = blocks.get(rowPositions[row] >>> BLOCK_BITS);
+                int start = rowPositions[row] & (BLOCK_SIZE - 1);
+                double sum = 0;
+                for (int i = start; i < start + rowLengths[row]; i++) {
+                    sum += authority[block[i]];
+                }
+                hub[rowPages[row]] = sum;
+            });
+            normalize(hub);
+            double delta = IntStream.range(0, nodes).parallel()
+                    .mapToDouble(v -> Math.abs(authority[v] - previous[v])).sum();
+            System.arraycopy(authority, 0, previous, 0, nodes);
+            if (delta < TOLERANCE) break;
+        }
+        iterations = Math.min(iterations, MAX_ITERATIONS);
+        return authority;
+    }
+
+    /**
+     * Scales the scores so that they sum up to 1.
+     * @param scores The scores to scale.
+     * @return false if all scores are 0.
+     */
+    private static boolean normalize(double[] scores) {
+        double sum = IntStream.range(0, scores.length).parallel().mapToDouble(i -> scores[i]).sum();
+        if (sum == 0) return false;
+        IntStream.range(0, scores.length).parallel().forEach(i -> scores[i] /= sum);
+        return true;
+    }
+
+    /**
+     * Writes the graph in a plain text CSR form. The first line is "nodes N edges M", followed by the URL of every
+     * node in the order of the ids (line i + 2 holds node i), followed by a line per processed page: its id and the
+     * ids of the pages it links to, separated by spaces, in the order the pages were processed.
+     * @param writer Destination of the graph.
+     * @param store Store holding the URLs of the nodes.
+     */
+    public synchronized void write(PrintWriter writer, UrlStore store) {
+        int nodes = store.size();
+        writer.println("nodes " + nodes + " edges " + edges);
+        for (int id = 0; id < nodes; id++) {
+            writer.println(store.get(id));
+        }
+        StringBuilder line = new StringBuilder();
+        for (int row = 0; row < rows; row++) {
+            int[] block = blocks.get(rowPositions[row] >>> BLOCK_BITS);
+            int start = rowPositions[row] & (BLOCK_SIZE - 1);
+            line.setLength(0);
+            line.append(rowPages[row]);
+            for (int i = start; i < start + rowLengths[row]; i++) {
+                line.append(' ').append(block[i]);
+            }
+            writer.println(line);
+        }
+    }
+
+    /**
+     * The incoming links of every node in CSR form, with the number of outgoing links of every node.
+     */
+    private class Transpose {
+        /** Start of the incoming links of every node in sources, indexed by id, plus the end. */
+        final int[] offsets;
+        /** Ids of the pages linking to every node. */
+        final int[] sources;
+        /** The number of outgoing links of every node. */
+        final int[] outDegree;
+
+        /**
+         * Builds the transpose of the recorded rows with two passes over the targets.
+         * @param nodes The number of nodes.
+         */
+        Transpose(int nodes) {
+            offsets = new int[nodes + 1];
+            outDegree = new int[nodes];
+            sources = new int[Math.toIntExact(edges)];
+            for (int row = 0; row < rows; row++) {
+                int[] block = blocks.get(rowPositions[row] >>> BLOCK_BITS);
+                int start = rowPositions[row] & (BLOCK_SIZE - 1);
+                outDegree[rowPages[row]] += rowLengths[row];
+                for (int i = start; i < start + rowLengths[row]; i++) {
+                    offsets[block[i] + 1]++;
+                }
+            }
+            for (int v = 0; v < nodes; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] fill = Arrays.copyOf(offsets, nodes);
+            for (int row = 0; row < rows; row++) {
+                int[] block = blocks.get(rowPositions[row] >>> BLOCK_BITS);
+                int start = rowPositions[row] & (BLOCK_SIZE - 1);
+                for (int i = start; i < start + rowLengths[row]; i++) {
+                    sources[fill[block[i]]++] = rowPages[row];
+                }
+            }
+        }
+    }
+}
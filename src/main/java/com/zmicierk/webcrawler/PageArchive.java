@@ -0,0 +1,417 @@
+package com.zmicierk.webcrawler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * The class is an append-only archive of the responses fetched during a crawl, used to run the analysis again
+ * without the network.
+ * <p>In the record mode every response received by a web client of the crawler (pages, redirects, and with
+ * JavaScript enabled the scripts of the pages) is appended to the archive. The archive is a directory of segment
+ * files "segment-NNNNN.warc" of at most SEGMENT_SIZE bytes each; a new crawl into the same directory appends new
+ * segments. A record follows the WARC layout: a header block, then the HTTP response (status line, headers with
+ * the body already decoded, body). Besides the standard fields it has the page being loaded (X-Crawl-Page),
+ * its depth (X-Crawl-Depth) and the page on which it was found (X-Crawl-Parent), when they are known.</p>
+ * <p>In the replay mode the segments are memory-mapped and indexed by URL (a URL recorded more than once is
+ * served from its last record). The web clients of the crawler get a connection serving the responses from the
+ * mapped segments, so the traversal, the term counting and the ranking run unchanged at disk speed; a URL which
+ * is not in the archive gets 404.</p>
+ * <p>All methods are thread-safe.</p>
+ */
+public class PageArchive {
+    /** The maximum size of a segment file (in bytes), a larger record gets a segment of its own. */
+    private static final long SEGMENT_SIZE = 128L << 20;
+    /** Prefix of the names of the segment files. */
+    private static final String SEGMENT_PREFIX = "segment-";
+    /** Extension of the segment files. */
+    private static final String SEGMENT_SUFFIX = ".warc";
+    /** Line separator of the header blocks. */
+    private static final String CRLF = "\r\n";
+    /** Response headers which describe the encoding of the body as received, the archive keeps the decoded body. */
+    private static final List<String> DROPPED_HEADERS =
+            Arrays.asList("content-encoding", "content-length", "transfer-encoding");
+    /** The directory of the segment files. */
+    private final Path directory;
+    /** Store holding the URLs of the pages of the crawl (record mode). */
+    private final UrlStore store;
+    /** Depth of every page of the crawl plus one (0 - unknown), indexed by url id (record mode). */
+    private int[] depths = new int[1024];
+    /** Id of the page on which every page was found plus one (0 - unknown), indexed by url id (record mode). */
+    private int[] parents = new int[1024];
+    /** The page being loaded by the current thread (record mode). */
+    private final ThreadLocal<String> currentPage = new ThreadLocal<>();
+    /** The segment being written, null before the first record (record mode). */
+    private OutputStream segment;
+    /** Number of the next segment file (record mode). */
+    private int nextSegment;
+    /** The number of bytes written to the current segment (record mode). */
+    private long segmentBytes;
+    /** The number of appended records. */
+    private long records;
+    /** Mapped segment files (replay mode). */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /** Recorded URLs (replay mode). */
+    private final UrlStore index;
+    /** Segment number shifted by 32 bits plus the offset of the last record of every URL, indexed by id (replay mode). */
+    private long[] positions = new long[1024];
+    /** The page at depth 0 of the last recorded crawl (replay mode). */
+    private String startUrl;
+
+    /**
+     * Initializes the archive.
+     * @param directory The directory of the segment files.
+     * @param store Store holding the URLs of the pages of the crawl, null for the replay mode.
+     */
+    private PageArchive(Path directory, UrlStore store) {
+        this.directory = directory;
+        this.store = store;
+        this.index = store == null ? new UrlStore() : null;
+    }
+
+    /**
+     * Opens an archive for recording. New segments are appended after the existing ones.
+     * @param directory The directory of the segment files, created if missing.
+     * @param store Store holding the URLs of the pages of the crawl.
+     * @return The archive.
+     * @throws IOException if the directory can't be created or read.
+     */
+    public static PageArchive openForRecording(String directory, UrlStore store) throws IOException {
+        PageArchive archive = new PageArchive(Paths.get(directory), store);
+        Files.createDirectories(archive.directory);
+        for (Path path : archive.segmentFiles()) {
+            String name = path.getFileName().toString();
+            int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            archive.nextSegment = Math.max(archive.nextSegment, number + 1);
+        }
+        return archive;
+    }
+
+    /**
+     * Opens an archive for replay: maps its segments and indexes the records.
+     * @param directory The directory of the segment files.
+     * @return The archive.
+     * @throws IOException if the archive can't be read or has no records.
+     */
+    public static PageArchive openForReplay(String directory) throws IOException {
+        PageArchive archive = new PageArchive(Paths.get(directory), null);
+        if (!Files.isDirectory(archive.directory)) throw new IOException("No archive in " + directory);
+        for (Path path : archive.segmentFiles()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                archive.segments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            archive.indexSegment(archive.segments.size() - 1, path);
+        }
+        if (archive.records == 0) throw new IOException("No records in " + directory);
+        return archive;
+    }
+
+    /**
+     * Lists the segment files of the directory in the order of their numbers.
+     * @return Paths of the segment files.
+     * @throws IOException if the directory can't be read.
+     */
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.filter(path -> path.getFileName().toString().matches(SEGMENT_PREFIX + "\\d+\\" + SEGMENT_SUFFIX))
+                    .forEach(files::add);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Returns the number of records appended to the archive (record mode) or found in it (replay mode).
+     * @return The number of records.
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Returns the page at depth 0 of the last crawl recorded in the archive.
+     * @return Link to the start page, null if no record has depth 0.
+     */
+    public String getStartUrl() {
+        return startUrl;
+    }
+
+    /**
+     * Records the start page of the crawl (depth 0).
+     * @param url Link to the start page.
+     */
+    public synchronized void noteStart(String url) {
+        int id = store.intern(url);
+        ensureOrigins(id);
+        depths[id] = 1;
+        parents[id] = 0;
+    }
+
+    /**
+     * Records the links of a processed page: every page first reached from it (or reached at a smaller depth)
+     * gets it as parent and its depth plus one.
+     * @param url Link to the page as it was queued.
+     * @param links Links of the page.
+     */
+    public synchronized void noteLinks(String url, List<String> links) {
+        int id = store.intern(url);
+        ensureOrigins(id);
+        int depth = depths[id];
+        if (depth == 0) return;
+        for (String link : links) {
+            int child = store.intern(link);
+            ensureOrigins(child);
+            if (depths[child] == 0 || depths[child] > depth + 1) {
+                depths[child] = depth + 1;
+                parents[child] = id + 1;
+            }
+        }
+    }
+
+    /**
+     * Grows the origin tables to hold the passed id.
+     * @param id Id of a page.
+     */
+    private void ensureOrigins(int id) {
+        if (id >= depths.length) {
+            depths = Arrays.copyOf(depths, Math.max(id + 1, depths.length * 2));
+            parents = Arrays.copyOf(parents, depths.length);
+        }
+    }
+
+    /**
+     * Declares the page the current thread is about to load, the responses received until the next call are
+     * recorded as part of loading it.
+     * @param url Link to the page as it was queued.
+     */
+    public void setCurrentPage(String url) {
+        currentPage.set(url);
+    }
+
+    /**
+     * Returns a connection which passes the requests to the passed connection and appends every response to
+     * the archive.
+     * @param connection Connection of a web client.
+     * @return Recording connection.
+     */
+    public WebConnection recordingConnection(WebConnection connection) {
+        return new WebConnectionWrapper(connection) {
+            @Override
+            public WebResponse getResponse(WebRequest request) throws IOException {
+                WebResponse response = super.getResponse(request);
+                append(request.getUrl().toExternalForm(), currentPage.get(), response);
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Returns a connection serving the responses from the archive (replay mode).
+     * @return Replaying connection.
+     */
+    public WebConnection replayConnection() {
+        return new WebConnection() {
+            @Override
+            public WebResponse getResponse(WebRequest request) {
+                return new WebResponse(read(request.getUrl().toExternalForm()), request, 0);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Appends a response to the current segment, starting a new segment when the current one is full.
+     * @param url Link to the requested resource.
+     * @param page Link to the page being loaded by the current thread, null if unknown.
+     * @param response The response.
+     * @throws IOException if the segment can't be written.
+     */
+    void append(String url, String page, WebResponse response) throws IOException {
+        ByteArrayOutputStream http = new ByteArrayOutputStream();
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.getStatusCode()).append(' ')
+                .append(clean(response.getStatusMessage())).append(CRLF);
+        for (NameValuePair header : response.getResponseHeaders()) {
+            if (DROPPED_HEADERS.contains(header.getName().toLowerCase())) continue;
+            head.append(clean(header.getName())).append(": ").append(clean(header.getValue())).append(CRLF);
+        }
+        head.append(CRLF);
+        http.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        try (InputStream body = response.getContentAsStream()) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = body.read(buffer)) > 0; ) {
+                http.write(buffer, 0, read);
+            }
+        }
+        synchronized (this) {
+            StringBuilder warc = new StringBuilder();
+            warc.append("WARC/1.0").append(CRLF);
+            warc.append("WARC-Type: response").append(CRLF);
+            warc.append("WARC-Target-URI: ").append(clean(url)).append(CRLF);
+            warc.append("WARC-Date: ").append(Instant.now().truncatedTo(ChronoUnit.SECONDS)).append(CRLF);
+            warc.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append('>').append(CRLF);
+            warc.append("Content-Type: application/http; msgtype=response").append(CRLF);
+            if (page != null) {
+                warc.append("X-Crawl-Page: ").append(clean(page)).append(CRLF);
+                int id = store.lookup(page);
+                if (id >= 0 && id < depths.length && depths[id] > 0) {
+                    warc.append("X-Crawl-Depth: ").append(depths[id] - 1).append(CRLF);
+                    if (parents[id] > 0) warc.append("X-Crawl-Parent: ").append(store.get(parents[id] - 1)).append(CRLF);
+                }
+            }
+            warc.append("Content-Length: ").append(http.size()).append(CRLF).append(CRLF);
+            byte[] header = warc.toString().getBytes(StandardCharsets.UTF_8);
+            long size = header.length + http.size() + 4;
+            if (segment == null || (segmentBytes > 0 && segmentBytes + size > SEGMENT_SIZE)) {
+                if (segment != null) segment.close();
+                File file = directory.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX))
+                        .toFile();
+                segment = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+                segmentBytes = 0;
+            }
+            segment.write(header);
+            http.writeTo(segment);
+            segment.write((CRLF + CRLF).getBytes(StandardCharsets.US_ASCII));
+            segment.flush();
+            segmentBytes += size;
+            records++;
+        }
+    }
+
+    /**
+     * Removes line breaks from a header value.
+     * @param value The value.
+     * @return The value on one line.
+     */
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Closes the current segment.
+     * @throws IOException if the segment can't be written.
+     */
+    public synchronized void close() throws IOException {
+        if (segment != null) segment.close();
+        segment = null;
+    }
+
+    /**
+     * Indexes the records of a mapped segment. A truncated record at the end of the segment (an interrupted crawl)
+     * is reported and skipped.
+     * @param number Number of the segment in the list of mapped segments.
+     * @param path Path of the segment file.
+     */
+    private void indexSegment(int number, Path path) {
+        ByteBuffer buffer = segments.get(number).duplicate();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            String url = null;
+            String page = null;
+            String depth = null;
+            long length = -1;
+            try {
+                if (!readLine(buffer).startsWith("WARC/")) throw new IOException("no WARC header");
+                for (String line; !(line = readLine(buffer)).isEmpty(); ) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) continue;
+                    String name = line.substring(0, colon).trim().toLowerCase();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("warc-target-uri")) url = value;
+                    if (name.equals("x-crawl-page")) page = value;
+                    if (name.equals("x-crawl-depth")) depth = value;
+                    if (name.equals("content-length")) length = Long.parseLong(value);
+                }
+                if (url == null || length < 0 || buffer.remaining() < length + 4) throw new IOException("truncated");
+            }
+            catch (Exception e) {
+                System.err.println("Archive " + path + ": unreadable record at offset " + start + ", skipped "
+                        + (buffer.limit() - start) + " bytes");
+                return;
+            }
+            buffer.position(buffer.position() + (int) length + 4);
+            int id = index.intern(url);
+            if (id >= positions.length) positions = Arrays.copyOf(positions, Math.max(id + 1, positions.length * 2));
+            positions[id] = ((long) number << 32) | start;
+            if ("0".equals(depth) && url.equals(page)) startUrl = url;
+            records++;
+        }
+    }
+
+    /**
+     * Builds the response of the last record of the passed URL.
+     * @param url Link to the requested resource.
+     * @return The recorded response, or 404 if the URL is not in the archive.
+     */
+    WebResponseData read(String url) {
+        int id = index.lookup(url);
+        if (id < 0) {
+            return new WebResponseData(new byte[0], 404, "Not in the archive", Collections.emptyList());
+        }
+        ByteBuffer buffer = segments.get((int) (positions[id] >>> 32)).duplicate();
+        buffer.position((int) positions[id]);
+        long length = 0;
+        for (String line; !(line = readLine(buffer)).isEmpty(); ) {
+            if (line.toLowerCase().startsWith("content-length:")) length = Long.parseLong(line.substring(15).trim());
+        }
+        int end = buffer.position() + (int) length;
+        String status = readLine(buffer);
+        int code = Integer.parseInt(status.substring(9, 12));
+        String message = status.length() > 13 ? status.substring(13) : "";
+        List<NameValuePair> headers = new ArrayList<>();
+        for (String line; !(line = readLine(buffer)).isEmpty(); ) {
+            int colon = line.indexOf(':');
+            if (colon > 0) headers.add(new NameValuePair(line.substring(0, colon), line.substring(colon + 1).trim()));
+        }
+        byte[] body = new byte[end - buffer.position()];
+        buffer.get(body);
+        return new WebResponseData(body, code, message, headers);
+    }
+
+    /**
+     * Reads a line ended by CRLF (or LF) from the buffer.
+     * @param buffer The buffer, positioned at the start of the line.
+     * @return The line without the line break.
+     */
+    private static String readLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        byte[] line = new byte[(end > start && buffer.get(end - 1) == '\r') ? end - start - 1 : end - start];
+        buffer.get(line);
+        buffer.position(Math.min(end + 1, buffer.limit()));
+        return new String(line, StandardCharsets.UTF_8);
+    }
+}
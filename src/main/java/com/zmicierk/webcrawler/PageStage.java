@@ -0,0 +1,215 @@
+package com.zmicierk.webcrawler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One stage of the staged traversal: a bounded queue of items and the worker threads processing them.
+ * The queue provides the backpressure: a producer putting an item into a full queue waits until a worker of the
+ * stage takes one, so a slow stage holds up the stages before it instead of accumulating pages in memory.
+ * <p>Every worker thread gets its own {@link Worker} from the factory, so that the state which is not thread-safe
+ * (web clients, text extractors, term engines) is never shared. An item whose processing fails, with an exception
+ * or an error, is passed to the failure handler and the worker goes on with the next item; the first failure is
+ * rethrown by {@link #await()}.</p>
+ * <p>The depth of the queue is sampled by {@link #sample()}, the average and the maximum depth show which stage
+ * is the bottleneck: the queue in front of it is full while the others are empty.</p>
+ * @param <T> Type of the items.
+ */
+class PageStage<T> {
+    /**
+     * Processing of the items by one worker thread.
+     * @param <T> Type of the items.
+     */
+    interface Worker<T> {
+        /**
+         * Processes one item.
+         * @param item The item taken from the queue of the stage.
+         * @throws Exception if the item can't be processed.
+         */
+        void process(T item) throws Exception;
+
+        /**
+         * Releases the resources of the worker after the last item.
+         */
+        default void close() {
+        }
+    }
+
+    /** Name of the stage. */
+    private final String name;
+    /** The number of worker threads. */
+    private final int workers;
+    /** The maximum number of items waiting in the queue. */
+    private final int capacity;
+    /** Items waiting to be processed. */
+    private final BlockingQueue<T> queue;
+    /** Creates the worker of every thread. */
+    private final Supplier<Worker<T>> factory;
+    /** Receives the items whose processing failed. */
+    private final Consumer<T> onFailure;
+    /** Worker threads. */
+    private final List<Thread> threads = new ArrayList<>();
+    /** true once no more items will be put. */
+    private volatile boolean closed;
+    /** The first exception or error thrown by a worker. */
+    private volatile Throwable failure;
+    /** The number of processed items. */
+    private long processed;
+    /** Total time the workers spent processing items (in nanoseconds). */
+    private long busyNanos;
+    /** Sum of the sampled depths of the queue. */
+    private long depthSum;
+    /** The number of samples of the depth of the queue. */
+    private long samples;
+    /** The maximum sampled depth of the queue. */
+    private int maxDepth;
+    /** Time at which the workers were started (in nanoseconds). */
+    private long startTime;
+
+    /**
+     * Initializes the stage, the workers are started by {@link #start()}.
+     * @param name Name of the stage.
+     * @param workers The number of worker threads.
+     * @param capacity The maximum number of items waiting in the queue.
+     * @param factory Creates the worker of every thread.
+     * @param onFailure Receives the items whose processing failed.
+     */
+    PageStage(String name, int workers, int capacity, Supplier<Worker<T>> factory, Consumer<T> onFailure) {
+        this.name = name;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    void start() {
+        startTime = System.nanoTime();
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(this::work, name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Puts an item into the queue, waiting while the queue is full.
+     * @param item The item to process.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Declares that no more items will be put. The workers finish the queued items and stop.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Waits until the workers have stopped.
+     * @throws Exception the first failure of a worker, if it was an exception.
+     * @throws Error the first failure of a worker, if it was an error.
+     */
+    void await() throws Exception {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure instanceof Exception) throw (Exception) failure;
+        if (failure != null) throw new Exception(failure);
+    }
+
+    /**
+     * Records the current depth of the queue.
+     */
+    synchronized void sample() {
+        int depth = queue.size();
+        depthSum += depth;
+        samples++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /**
+     * Returns the number of items waiting in the queue.
+     * @return Depth of the queue.
+     */
+    int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the maximum number of items waiting in the queue.
+     * @return Capacity of the queue.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the name of the stage.
+     * @return Name of the stage.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Describes the work of the stage: the number of workers and processed items, the average and maximum depth
+     * of the queue and the share of the time the workers were busy.
+     * @return One line summary.
+     */
+    synchronized String summary() {
+        double elapsed = Math.max(1, System.nanoTime() - startTime) * (double) workers;
+        return String.format("%-8s workers %2d, processed %6d, queue avg %5.1f max %3d/%d, busy %3.0f%%",
+                name, workers, processed, samples == 0 ? 0.0 : (double) depthSum / samples, maxDepth, capacity,
+                100.0 * busyNanos / elapsed);
+    }
+
+    /**
+     * The loop of one worker thread: takes items until the stage is closed and its queue is empty.
+     */
+    private void work() {
+        Worker<T> worker = factory.get();
+        try {
+            while (true) {
+                T item = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (closed && queue.isEmpty()) break;
+                    continue;
+                }
+                long begin = System.nanoTime();
+                try {
+                    worker.process(item);
+                }
+                catch (Throwable e) {
+                    // An error (a stack overflow in a script, say) must not end the thread silently: the item
+                    // would never be finished and the crawl would wait for it forever.
+                    if (failure == null) failure = e;
+                    onFailure.accept(item);
+                }
+                synchronized (this) {
+                    processed++;
+                    busyNanos += System.nanoTime() - begin;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            worker.close();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.zmicierk.webcrawler;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The class connects one crawler process (shard) with the other shards of a distributed crawl.
+ * Every shard owns the URLs whose host is mapped to it by {@link ShardRing}. Links to pages owned by other shards
+ * are forwarded to their owners in batches over plain TCP sockets. The shards meet at barriers where they exchange
+ * their counters, which gives every shard the same view of the global number of visited pages and of the work left
+ * at the current level. At the end of the crawl the raw statistics of all shards are sent to shard 0.
+ * <p>The protocol is line based (UTF-8), one message per line:</p>
+ * H id - handshake, the id of the connecting shard<br>
+ * U url - a link owned by the receiving shard<br>
+ * B visited pending formed exhausted - barrier with the counters of the sending shard<br>
+ * R line - a line of the raw statistics file<br>
+ * D - the sending shard has sent all of its raw statistics<br>
+ */
+public class ShardNode implements Closeable {
+    /** The number of links collected for a shard before they are sent to it. */
+    private static final int BATCH_SIZE = 256;
+    /** Time to wait for the other shards to come up (in milliseconds). */
+    private static final int CONNECT_TIMEOUT = 60000;
+    /** Pause between attempts to connect to a shard which is not listening yet (in milliseconds). */
+    private static final int CONNECT_RETRY_DELAY = 250;
+    /** Marker placed in the queues of a shard whose connection was lost. */
+    private static final long[] LOST = new long[0];
+    /** Marker placed in the row queue when a shard has sent all of its rows. */
+    private static final String ROWS_DONE = "\u0000";
+    /** Marker (followed by the shard id) placed in the row queue when a shard was lost before sending its rows. */
+    private static final String ROWS_LOST = "\u0001";
+    /** The id of this shard. */
+    private final int shardId;
+    /** Addresses (host:port) of all shards, indexed by shard id. */
+    private final String[] peers;
+    /** Maps URLs to their owners. */
+    private final ShardRing ring;
+    /** Connections to the other shards, indexed by shard id (null for this shard). */
+    private final BufferedWriter[] out;
+    /** Links waiting to be sent, indexed by shard id. */
+    private final List<List<String>> outBatch = new ArrayList<>();
+    /** Links which were already forwarded, so every link is sent to its owner only once. */
+    private final UrlStore forwardedUrls = new UrlStore();
+    /** Links received from the other shards and not yet taken by the crawler. */
+    private final ConcurrentLinkedQueue<String> inbox = new ConcurrentLinkedQueue<>();
+    /** Barrier counters received from the other shards, indexed by shard id. */
+    private final List<BlockingQueue<long[]>> barriers = new ArrayList<>();
+    /** Raw statistics lines received from the other shards (used by shard 0). */
+    private final BlockingQueue<String> rows = new LinkedBlockingQueue<>();
+    /** The number of links forwarded since the last call of resetForwarded. */
+    private long forwarded;
+    /** Server socket accepting connections from the other shards. */
+    private ServerSocket serverSocket;
+    /** All sockets opened by this shard. */
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    /**
+     * Initializes the shard. No connections are opened until {@link #connect()} is called.
+     * @param shardId The id of this shard, an index in the peers list.
+     * @param peers Addresses (host:port) of all shards, indexed by shard id.
+     * @throws Exception if the arguments passed are invalid.
+     */
+    public ShardNode(int shardId, String[] peers) throws Exception {
+        if (peers.length < 1) throw new Exception("The list of shards is empty");
+        if (shardId < 0 || shardId >= peers.length) throw new Exception("shardId must be an index in the list of shards");
+        for (String peer : peers) {
+            parseAddress(peer);
+        }
+        this.shardId = shardId;
+        this.peers = peers;
+        this.ring = new ShardRing(peers.length);
+        this.out = new BufferedWriter[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            outBatch.add(new ArrayList<String>());
+            barriers.add(new LinkedBlockingQueue<long[]>());
+        }
+    }
+
+    /**
+     * Returns the id of this shard.
+     * @return The id of this shard.
+     */
+    public int getShardId() {
+        return shardId;
+    }
+
+    /**
+     * Returns the number of shards participating in the crawl.
+     * @return The number of shards participating in the crawl.
+     */
+    public int getNumShards() {
+        return peers.length;
+    }
+
+    /**
+     * Starts listening on the port of this shard and connects to all other shards. Blocks until every shard
+     * has connected to this one and this one has connected to every shard.
+     * @throws IOException if a shard can't be reached in time.
+     */
+    public void connect() throws IOException {
+        InetSocketAddress own = parseAddress(peers[shardId]);
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(own.getPort()));
+        Thread acceptor = new Thread(this::acceptPeers, "shard-" + shardId + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        for (int i = 0; i < peers.length; i++) {
+            if (i == shardId) continue;
+            Socket socket = openSocket(parseAddress(peers[i]), deadline);
+            sockets.add(socket);
+            out[i] = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            send(i, "H " + shardId);
+            out[i].flush();
+        }
+        try {
+            acceptor.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (acceptor.isAlive()) throw new IOException("Not all shards connected to shard " + shardId);
+    }
+
+    /**
+     * Checks whether the passed url is owned by this shard.
+     * @param url Link to the page.
+     * @return true if the url is owned by this shard.
+     */
+    public boolean owns(String url) {
+        return ring.shardOf(url) == shardId;
+    }
+
+    /**
+     * Queues the passed url for sending to the shard which owns it. The batch is sent as soon as it is full.
+     * Links which were already forwarded are ignored.
+     * @param url Link to a page owned by another shard.
+     * @throws IOException if the owner can't be reached.
+     */
+    public void forward(String url) throws IOException {
+        if (forwardedUrls.contains(url)) return;
+        forwardedUrls.intern(url);
+        int owner = ring.shardOf(url);
+        List<String> batch = outBatch.get(owner);
+        batch.add(url);
+        forwarded++;
+        if (batch.size() >= BATCH_SIZE) flushBatch(owner);
+    }
+
+    /**
+     * Returns the number of links forwarded since the last call of {@link #resetForwarded()}.
+     * @return The number of forwarded links.
+     */
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Resets the counter of forwarded links. Called when the crawl moves to the next level.
+     */
+    public void resetForwarded() {
+        forwarded = 0;
+    }
+
+    /**
+     * Takes all links received from the other shards so far.
+     * @return Links owned by this shard which were discovered by the other shards.
+     */
+    public List<String> drainInbox() {
+        List<String> urls = new ArrayList<>();
+        String url;
+        while ((url = inbox.poll()) != null) {
+            urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * Sends all queued links, then the counters of this shard to all shards, and waits for the counters of all
+     * other shards. Because links are sent before the barrier over the same connection, every link forwarded to
+     * this shard before the barrier is in the inbox when this method returns.
+     * @param counters Counters of this shard: the number of pages visited, the number of pages of the current level
+     * not yet processed, the number of links for the next level found, 1 if the crawl budget is used up (else 0).
+     * @return Counters of all shards, indexed by shard id.
+     * @throws IOException if the connection to a shard was lost.
+     */
+    public long[][] barrier(long... counters) throws IOException {
+        long[][] state = new long[peers.length][];
+        state[shardId] = counters;
+        StringBuilder message = new StringBuilder("B");
+        for (long counter : counters) {
+            message.append(' ').append(counter);
+        }
+        for (int i = 0; i < peers.length; i++) {
+            if (i == shardId) continue;
+            flushBatch(i);
+            send(i, message.toString());
+            out[i].flush();
+        }
+        for (int i = 0; i < peers.length; i++) {
+            if (i == shardId) continue;
+            long[] peerState;
+            try {
+                peerState = barriers.get(i).take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for shard " + i);
+            }
+            if (peerState == LOST) throw new IOException("Connection to shard " + i + " lost");
+            state[i] = peerState;
+        }
+        return state;
+    }
+
+    /**
+     * Sends the raw statistics file of this shard to shard 0.
+     * @param fileName The path to the raw statistics file.
+     * @param skipHeader If true, the first line of the file (the table header) is not sent.
+     * @throws IOException if the file can't be read or shard 0 can't be reached.
+     */
+    public void sendRows(String fileName, boolean skipHeader) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+            if (skipHeader) reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                send(0, "R " + line);
+            }
+        }
+        send(0, "D");
+        out[0].flush();
+    }
+
+    /**
+     * Receives the raw statistics of all other shards and writes them to the passed writer.
+     * Blocks until every shard has sent all of its rows.
+     * @param writer Writer of the merged raw statistics file.
+     * @throws IOException if the connection to a shard was lost.
+     */
+    public void receiveRows(PrintWriter writer) throws IOException {
+        int finished = 0;
+        while (finished < peers.length - 1) {
+            String row;
+            try {
+                row = rows.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while merging statistics");
+            }
+            if (row == ROWS_DONE) {
+                finished++;
+            } else if (row.startsWith(ROWS_LOST)) {
+                throw new IOException("Connection to shard " + row.substring(1) + " lost");
+            } else {
+                writer.println(row);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Closes all connections of this shard.
+     */
+    @Override
+    public void close() {
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            }
+            catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Accepts a connection from every other shard and starts a reader thread for each of them.
+     */
+    private void acceptPeers() {
+        try {
+            for (int i = 0; i < peers.length - 1; i++) {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String hello = reader.readLine();
+                if (hello == null || !hello.startsWith("H ")) {
+                    socket.close();
+                    i--;
+                    continue;
+                }
+                int peerId = Integer.parseInt(hello.substring(2).trim());
+                Thread thread = new Thread(() -> readPeer(peerId, reader), "shard-" + shardId + "-from-" + peerId);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (Exception e) {
+            // the server socket was closed
+        }
+    }
+
+    /**
+     * Reads the messages of one shard until its connection is closed. A closed connection is reported to a waiting
+     * barrier and, unless the shard has sent all of its rows, to a waiting merge of the raw statistics.
+     * @param peerId The id of the sending shard.
+     * @param reader Reader of the connection.
+     */
+    private void readPeer(int peerId, BufferedReader reader) {
+        boolean rowsDone = false;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("U ")) {
+                    inbox.add(line.substring(2));
+                } else if (line.startsWith("B ")) {
+                    String[] words = line.split(" ");
+                    long[] counters = new long[words.length - 1];
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] = Long.parseLong(words[i + 1]);
+                    }
+                    barriers.get(peerId).put(counters);
+                } else if (line.startsWith("R ")) {
+                    rows.put(line.substring(2));
+                } else if (line.equals("D")) {
+                    rows.put(ROWS_DONE);
+                    rowsDone = true;
+                }
+            }
+        }
+        catch (Exception e) {
+            // connection lost
+        }
+        barriers.get(peerId).add(LOST);
+        if (!rowsDone) rows.add(ROWS_LOST + peerId);
+    }
+
+    /**
+     * Sends all queued links of the passed shard.
+     * @param peer The id of the receiving shard.
+     * @throws IOException if the shard can't be reached.
+     */
+    private void flushBatch(int peer) throws IOException {
+        List<String> batch = outBatch.get(peer);
+        if (batch.isEmpty()) return;
+        for (String url : batch) {
+            send(peer, "U " + url);
+        }
+        batch.clear();
+        out[peer].flush();
+    }
+
+    /**
+     * Writes one message to the connection of the passed shard.
+     * @param peer The id of the receiving shard.
+     * @param message The message without line terminator.
+     * @throws IOException if the shard can't be reached.
+     */
+    private void send(int peer, String message) throws IOException {
+        out[peer].write(message);
+        out[peer].write('\n');
+    }
+
+    /**
+     * Connects to the passed address, retrying until the deadline while the shard is not listening yet.
+     * @param address Address of the shard.
+     * @param deadline Time (in milliseconds since the epoch) after which connecting is abandoned.
+     * @return The connected socket.
+     * @throws IOException if the shard can't be reached before the deadline.
+     */
+    private static Socket openSocket(InetSocketAddress address, long deadline) throws IOException {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            catch (IOException e) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) throw new IOException("Can't connect to shard " + address);
+                try {
+                    Thread.sleep(CONNECT_RETRY_DELAY);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting to shard " + address);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses an address in the host:port form.
+     * @param address Address of the shard.
+     * @return Unresolved socket address.
+     * @throws IllegalArgumentException if the address is malformed.
+     */
+    private static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 1) throw new IllegalArgumentException("Illegal shard address: " + address);
+        return InetSocketAddress.createUnresolved(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+}
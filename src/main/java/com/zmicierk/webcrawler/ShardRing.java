@@ -0,0 +1,122 @@
+package com.zmicierk.webcrawler;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The class maps URLs to the crawler process (shard) that owns them.
+ * Ownership is decided by a consistent hash of the host part of the URL, so all pages of one site are processed
+ * by the same shard and every shard can deduplicate its own part of the URL space without asking the others.
+ * Each shard is placed on the ring several times (virtual nodes) to even out the distribution of hosts.
+ */
+public class ShardRing {
+    /** The number of points on the ring for every shard. */
+    private static final int VIRTUAL_NODES = 64;
+    /** Hash ring: point on the ring -> shard id. */
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    /** The number of shards participating in the crawl. */
+    private final int numShards;
+
+    /**
+     * Builds the ring for the specified number of shards.
+     * @param numShards The number of shards participating in the crawl.
+     * @throws Exception if the number of shards is not positive.
+     */
+    public ShardRing(int numShards) throws Exception {
+        if (numShards < 1) throw new Exception("The number of shards must be bigger than 0");
+        this.numShards = numShards;
+        for (int shard = 0; shard < numShards; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash("shard-" + shard + "-" + node), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of shards participating in the crawl.
+     * @return The number of shards participating in the crawl.
+     */
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /**
+     * Returns the id of the shard which owns the passed url.
+     * @param url Link to the page.
+     * @return The id of the shard which owns the host of the passed url.
+     */
+    public int shardOf(String url) {
+        if (numShards == 1) return 0;
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(hostOf(url)));
+        if (entry == null) entry = ring.firstEntry();
+        return entry.getValue();
+    }
+
+    /**
+     * Extracts the host from the passed url. If the url can't be parsed, the url itself is used as the host,
+     * so that malformed links are still owned by exactly one shard.
+     * @param url Link to the page.
+     * @return Host of the url in lower case.
+     */
+    static String hostOf(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null) return host.toLowerCase();
+        }
+        catch (Exception e) {
+            // fall through to the raw url
+        }
+        return url;
+    }
+
+    /**
+     * 64-bit FNV-1a hash over the UTF-8 bytes of the string followed by a finalizing mix.
+     * Unlike String.hashCode the values are spread over the whole ring and are the same in every process.
+     * @param value The string to hash.
+     * @return Hash of the string.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Splits the remaining global page visit budget between the shards. Each shard gets at most as many visits
+     * as it has pending pages, the rest is shared evenly, so the sum of the allowances never exceeds the budget
+     * and no allowance is given to a shard which has nothing to process. The result depends only on the arguments,
+     * so every shard computes the same split without further communication.
+     * @param remaining The number of page visits left before the global maxVisited limit is reached.
+     * @param pending The number of pages waiting to be processed on each shard.
+     * @return The number of page visits each shard may perform in the next round.
+     */
+    static long[] allocateVisits(long remaining, long[] pending) {
+        long[] allowance = new long[pending.length];
+        while (remaining > 0) {
+            int hungry = 0;
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] > allowance[i]) hungry++;
+            }
+            if (hungry == 0) break;
+            long share = Math.max(1, remaining / hungry);
+            for (int i = 0; i < pending.length && remaining > 0; i++) {
+                long add = Math.min(Math.min(share, pending[i] - allowance[i]), remaining);
+                if (add > 0) {
+                    allowance[i] += add;
+                    remaining -= add;
+                }
+            }
+        }
+        return allowance;
+    }
+}
@@ -0,0 +1,287 @@
+package com.zmicierk.webcrawler;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.URL;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import com.gargoylesoftware.htmlunit.Cache;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.HeaderUtils;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
+
+/**
+ * The class is a cache of scripts and other subresources shared by all web clients of a crawl, bounded by the
+ * total size of the cached content and evicting the least recently used entries.
+ * <p>The pages of a site load the same script bundles. The cache of a web client keeps 40 entries and lives as long
+ * as the client, so every client downloads and compiles every bundle again. This cache is set on all clients: a
+ * script loaded by one client is served to the others without a request, together with the script compiled by
+ * HtmlUnit (the compiled script keeps no state of the page, all clients use the same browser version).</p>
+ * <p>The HTTP cache headers decide what is cacheable and for how long, as in HtmlUnit (no-store, private, max-age,
+ * s-maxage, Expires, Last-Modified), except that a positive max-age makes a response cacheable without
+ * Last-Modified, and that responses with no-cache (which must be revalidated) or a status other than 200 are not
+ * cached.
+ * Documents (HTML pages) are not cached, every page of the crawl is loaded once. Content bigger than
+ * MAX_ENTRY_SIZE is not cached, so every entry is held in memory and can be dropped without cleaning up a
+ * temporary file. The size of an entry is the length of its content; the compiled script is not counted.</p>
+ * <p>Closing a client clears its cache, so a client must be given a cache of its own before it is closed.</p>
+ * <p>The entries are not serialized, a deserialized cache is empty.</p>
+ * <p>All methods are thread-safe.</p>
+ */
+public class SharedCache extends Cache {
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+    /** The biggest cached content (in bytes), the content HtmlUnit keeps in memory by default. */
+    private static final long MAX_ENTRY_SIZE = 500000;
+    /** An entry expiring sooner than this (in milliseconds) is stale, as in HtmlUnit. */
+    private static final long DELAY_BEFORE_EXPIRES = 600000;
+    /** The maximum total size of the cached content (in bytes). */
+    private final long maxBytes;
+    /** Entries by normalized url, in the order of the last access. */
+    private transient LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    /** The total size of the cached content (in bytes). */
+    private transient long bytes;
+    /** The number of responses served from the cache. */
+    private long responseHits;
+    /** The number of lookups of a compiled script. */
+    private long scriptLookups;
+    /** The number of compiled scripts served from the cache. */
+    private long scriptHits;
+    /** The number of responses stored. */
+    private long stored;
+    /** The number of entries evicted to stay within maxBytes. */
+    private long evicted;
+
+    /**
+     * Initializes an empty cache.
+     * @param maxBytes The maximum total size of the cached content (in bytes).
+     * @throws Exception if maxBytes is not positive.
+     */
+    public SharedCache(long maxBytes) throws Exception {
+        if (maxBytes < 1) throw new Exception("cache size must be bigger than 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Stores the response and the object made of it (a compiled script) if the response is cacheable,
+     * evicting the least recently used entries beyond maxBytes.
+     * @param request The request.
+     * @param response The response to the request.
+     * @param toCache The object made of the response, null if there is none.
+     * @return true if the response was stored.
+     */
+    @Override
+    public synchronized boolean cacheIfPossible(WebRequest request, WebResponse response, Object toCache) {
+        if (!isCacheable(request, response)) return false;
+        URL url = response.getWebRequest().getUrl();
+        if (url == null) return false;
+        Entry entry = new Entry(response, toCache, getCurrentTimestamp());
+        Entry previous = entries.put(UrlUtils.normalize(url), entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        } else {
+            stored++;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+            evicted++;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the content of a response to a GET request can be cached: a successful response, not a
+     * document, not bigger than MAX_ENTRY_SIZE or maxBytes, without no-store or no-cache, with a positive max-age
+     * (or s-maxage), or else cacheable by HtmlUnit's rules (Expires at least 10 minutes ahead, or Last-Modified at
+     * least 10 minutes ago). HtmlUnit itself ignores max-age here.
+     * @param response The response.
+     * @return true if the content can be cached.
+     */
+    @Override
+    protected boolean isCacheableContent(WebResponse response) {
+        if (response.getStatusCode() != 200) return false;
+        if (HeaderUtils.containsNoStore(response) || HeaderUtils.containsNoCache(response)) return false;
+        String type = response.getContentType().toLowerCase(Locale.ROOT);
+        if (type.equals("text/html") || type.equals("application/xhtml+xml")) return false;
+        long size = response.getContentLength();
+        if (size > MAX_ENTRY_SIZE || size > maxBytes) return false;
+        long maxAge = maxAge(response);
+        return maxAge < 0 ? super.isCacheableContent(response) : maxAge > 0;
+    }
+
+    /**
+     * Returns the lifetime of the response given by Cache-Control: s-maxage (unless private), else max-age.
+     * @param response The response.
+     * @return The lifetime (in seconds), -1 if neither is given.
+     */
+    private static long maxAge(WebResponse response) {
+        if (!HeaderUtils.containsPrivate(response) && HeaderUtils.containsSMaxage(response)) {
+            return HeaderUtils.sMaxage(response);
+        }
+        if (HeaderUtils.containsMaxAge(response)) {
+            return HeaderUtils.maxAge(response);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the cached response to the request.
+     * @param request The request.
+     * @return The cached response, null if there is no fresh one.
+     */
+    @Override
+    public synchronized WebResponse getCachedResponse(WebRequest request) {
+        Entry entry = getEntry(request);
+        if (entry == null) return null;
+        responseHits++;
+        return entry.response;
+    }
+
+    /**
+     * Returns the object made of the cached response to the request (a compiled script).
+     * @param request The request.
+     * @return The cached object, null if there is none.
+     */
+    @Override
+    public synchronized Object getCachedObject(WebRequest request) {
+        scriptLookups++;
+        Entry entry = getEntry(request);
+        if (entry == null || entry.value == null) return null;
+        scriptHits++;
+        return entry.value;
+    }
+
+    /**
+     * Looks up the entry of a GET request, a stale entry is removed.
+     * @param request The request.
+     * @return The fresh entry, null if there is none.
+     */
+    private Entry getEntry(WebRequest request) {
+        if (request.getHttpMethod() != HttpMethod.GET || request.getUrl() == null) return null;
+        String key = UrlUtils.normalize(request.getUrl());
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (!isFresh(entry, getCurrentTimestamp())) {
+            entries.remove(key);
+            bytes -= entry.size;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Checks whether the entry may still be used without asking the server, in the same way as HtmlUnit:
+     * for s-maxage or max-age seconds, until 10 minutes before Expires, or without limit if neither is given.
+     * @param entry The entry.
+     * @param now Current time (in milliseconds).
+     * @return true if the entry is fresh.
+     */
+    private static boolean isFresh(Entry entry, long now) {
+        long maxAge = maxAge(entry.response);
+        if (maxAge >= 0) return now - entry.createdAt < maxAge * 1000;
+        if (entry.response.getResponseHeaderValue("Expires") == null) return true;
+        Date expires = parseDateHeader(entry.response, "Expires");
+        return expires != null && expires.getTime() - now > DELAY_BEFORE_EXPIRES;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * @return The number of responses and style sheets.
+     */
+    @Override
+    public synchronized int getSize() {
+        return entries.size() + super.getSize();
+    }
+
+    /**
+     * Returns the total size of the cached content.
+     * @return The size (in bytes).
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        super.clear();
+    }
+
+    /**
+     * Removes the stale entries.
+     */
+    @Override
+    public synchronized void clearOutdated() {
+        long now = getCurrentTimestamp();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!isFresh(entry, now)) {
+                bytes -= entry.size;
+                iterator.remove();
+            }
+        }
+        super.clearOutdated();
+    }
+
+    /**
+     * Restores a serialized cache without entries.
+     * @param in Stream of the serialized cache.
+     * @throws IOException if the stream can't be read.
+     * @throws ClassNotFoundException if a class of the serialized form is missing.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Describes the use of the cache.
+     * @return One line: the entries and their size, the responses served, the compiled scripts reused and the
+     * evictions.
+     */
+    public synchronized String summary() {
+        return String.format("Cache: %d entries, %d KB of %d KB, %d responses served from the cache, %d of %d " +
+                        "scripts reused compiled (%d%%), %d stored, %d evicted", entries.size(), bytes / 1024,
+                maxBytes / 1024, responseHits, scriptHits, scriptLookups,
+                scriptLookups == 0 ? 0 : 100 * scriptHits / scriptLookups, stored, evicted);
+    }
+
+    /**
+     * A cached response with the object made of it.
+     */
+    private static class Entry {
+        /** The cached response. */
+        final WebResponse response;
+        /** The object made of the response (a compiled script), null if there is none. */
+        final Object value;
+        /** Time the response was stored (in milliseconds). */
+        final long createdAt;
+        /** The length of the content (in bytes). */
+        final long size;
+
+        /**
+         * Initializes the entry.
+         * @param response The cached response.
+         * @param value The object made of the response, null if there is none.
+         * @param createdAt Time the response was stored (in milliseconds).
+         */
+        Entry(WebResponse response, Object value, long createdAt) {
+            this.response = response;
+            this.value = value;
+            this.createdAt = createdAt;
+            this.size = Math.max(0, response.getContentLength());
+        }
+    }
+}
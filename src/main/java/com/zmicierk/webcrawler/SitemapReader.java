@@ -0,0 +1,252 @@
+package com.zmicierk.webcrawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/**
+ * The class discovers pages from the sitemaps of a site, so that deep pages are reached without fetching the pages
+ * which only link to them. The sitemaps are listed by the <code>Sitemap:</code> lines of robots.txt (or, without
+ * them, /sitemap.xml is used), or given directly.
+ * <p>A sitemap is a urlset (the <code>loc</code> and <code>lastmod</code> of every page) or a sitemap index (the
+ * <code>loc</code> and <code>lastmod</code> of further sitemaps), either of them may be gzip compressed. The XML is
+ * parsed as a stream with StAX, every page is passed on as soon as its entry is read, so a sitemap of 50000 pages
+ * is never held in memory. The sitemaps of an index are read one after another, at most MAX_SITEMAPS per crawl.</p>
+ * <p>With a date given, a page whose lastmod is before the date is unchanged since then: it is passed to the skip
+ * consumer instead of the seed consumer, and a whole sitemap whose lastmod in the index is before the date is not
+ * read. Pages without lastmod are seeded.</p>
+ * <p>The sitemaps are loaded with the web client of the crawler, so redirects, the page archive and the cache
+ * apply to them as to pages.</p>
+ */
+public class SitemapReader {
+    /** The maximum number of sitemaps read in one crawl (the sitemap protocol allows 50000 per index). */
+    private static final int MAX_SITEMAPS = 1000;
+    /** Client loading robots.txt and the sitemaps. */
+    private final WebClient client;
+    /** Pages modified before this time (in milliseconds) are skipped, Long.MIN_VALUE - none are skipped. */
+    private final long since;
+    /** Factory of the streaming XML parsers, without DTDs and external entities. */
+    private final XMLInputFactory factory = XMLInputFactory.newInstance();
+    /** The number of sitemaps read. */
+    private int sitemaps;
+    /** The number of pages seeded. */
+    private long seeded;
+    /** The number of pages skipped as unchanged. */
+    private long skipped;
+    /** The number of sitemaps which could not be read. */
+    private int failed;
+
+    /**
+     * Initializes the reader.
+     * @param client Client loading robots.txt and the sitemaps.
+     * @param since Pages modified before this time (in milliseconds) are skipped, Long.MIN_VALUE - none are skipped.
+     */
+    public SitemapReader(WebClient client, long since) {
+        this.client = client;
+        this.since = since;
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Parses a W3C datetime as used by lastmod: YYYY, YYYY-MM, YYYY-MM-DD or a full date and time with an offset.
+     * A date without time is taken at midnight UTC.
+     * @param date The date.
+     * @return The time (in milliseconds), or Long.MIN_VALUE if the date can't be parsed.
+     */
+    public static long parseDate(String date) {
+        date = date.trim();
+        try {
+            if (date.length() == 4) date += "-01";
+            if (date.length() == 7) date += "-01";
+            if (date.length() == 10) {
+                return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+        }
+        catch (Exception e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Reads the sitemaps listed in robots.txt of the host of the passed page, or /sitemap.xml of the host
+     * if robots.txt lists none.
+     * @param pageUrl Link to a page of the site.
+     * @param seed Receives the links to the pages to crawl.
+     * @param skip Receives the links to the pages unchanged since the date.
+     * @throws Exception if the link is invalid.
+     */
+    public void readRobots(String pageUrl, Consumer<String> seed, Consumer<String> skip) throws Exception {
+        URL page = new URL(pageUrl);
+        URL robots = new URL(page, "/robots.txt");
+        Deque<String> queue = new ArrayDeque<>();
+        WebResponse response = load(robots);
+        if (response != null) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getContentAsStream(),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.regionMatches(true, 0, "Sitemap:", 0, 8)) {
+                        queue.add(new URL(robots, line.substring(8).trim()).toExternalForm());
+                    }
+                }
+            }
+            finally {
+                response.cleanUp();
+            }
+        }
+        if (queue.isEmpty()) {
+            queue.add(new URL(page, "/sitemap.xml").toExternalForm());
+        }
+        read(queue, seed, skip);
+    }
+
+    /**
+     * Reads the passed sitemap or sitemap index.
+     * @param sitemapUrl Link to the sitemap.
+     * @param seed Receives the links to the pages to crawl.
+     * @param skip Receives the links to the pages unchanged since the date.
+     */
+    public void read(String sitemapUrl, Consumer<String> seed, Consumer<String> skip) {
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(sitemapUrl);
+        read(queue, seed, skip);
+    }
+
+    /**
+     * Reads the queued sitemaps, the sitemaps listed by an index are queued behind them.
+     * @param queue Links to the sitemaps to read.
+     * @param seed Receives the links to the pages to crawl.
+     * @param skip Receives the links to the pages unchanged since the date.
+     */
+    private void read(Deque<String> queue, Consumer<String> seed, Consumer<String> skip) {
+        Set<String> seen = new HashSet<>();
+        while (!queue.isEmpty() && sitemaps < MAX_SITEMAPS) {
+            String sitemapUrl = queue.poll();
+            if (!seen.add(sitemapUrl)) continue;
+            sitemaps++;
+            WebResponse response = null;
+            try {
+                response = load(new URL(sitemapUrl));
+                if (response == null) {
+                    failed++;
+                    continue;
+                }
+                InputStream in = new BufferedInputStream(response.getContentAsStream());
+                in.mark(2);
+                boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+                in.reset();
+                try (InputStream content = gzip ? new GZIPInputStream(in) : in) {
+                    parse(content, queue, seed, skip);
+                }
+            }
+            catch (Exception e) {
+                failed++;
+                System.err.println("Sitemap " + sitemapUrl + ": " + e.getMessage());
+            }
+            finally {
+                if (response != null) response.cleanUp();
+            }
+        }
+    }
+
+    /**
+     * Parses one sitemap as a stream: a url entry is passed on at its end tag, a sitemap entry of an index
+     * is queued.
+     * @param content Content of the sitemap (decompressed).
+     * @param queue Links to the sitemaps still to read.
+     * @param seed Receives the links to the pages to crawl.
+     * @param skip Receives the links to the pages unchanged since the date.
+     * @throws Exception if the XML is malformed.
+     */
+    private void parse(InputStream content, Deque<String> queue, Consumer<String> seed, Consumer<String> skip)
+            throws Exception {
+        XMLStreamReader reader = factory.createXMLStreamReader(content);
+        try {
+            String loc = null;
+            String lastmod = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("url") || name.equals("sitemap")) {
+                        loc = null;
+                        lastmod = null;
+                    } else if (name.equals("loc")) {
+                        loc = reader.getElementText().trim();
+                    } else if (name.equals("lastmod")) {
+                        lastmod = reader.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && loc != null && !loc.isEmpty()) {
+                    String name = reader.getLocalName();
+                    long modified = lastmod == null ? Long.MIN_VALUE : parseDate(lastmod);
+                    boolean unchanged = since != Long.MIN_VALUE && modified != Long.MIN_VALUE && modified < since;
+                    if (name.equals("url")) {
+                        if (unchanged) {
+                            skipped++;
+                            skip.accept(loc);
+                        } else if (loc.toLowerCase(Locale.ROOT).startsWith("http")) {
+                            seeded++;
+                            seed.accept(loc);
+                        }
+                    } else if (name.equals("sitemap") && !unchanged) {
+                        queue.add(loc);
+                    }
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads the passed resource, failures other than a missing resource are reported to the standard error stream.
+     * @param url Link to robots.txt or a sitemap.
+     * @return The response, or null if the resource can't be loaded.
+     */
+    private WebResponse load(URL url) {
+        try {
+            WebResponse response = client.loadWebResponse(new WebRequest(url));
+            if (response.getStatusCode() == 200) return response;
+            if (response.getStatusCode() != 404) {
+                System.err.println("Sitemap " + url + ": HTTP " + response.getStatusCode());
+            }
+            response.cleanUp();
+        }
+        catch (IOException e) {
+            System.err.println("Sitemap " + url + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Describes the work of the reader.
+     * @return One line: the sitemaps read and failed, the pages seeded and skipped.
+     */
+    public String summary() {
+        return "Sitemaps: " + sitemaps + " read (" + failed + " failed), " + seeded + " pages seeded, " + skipped
+                + " unchanged pages skipped";
+    }
+}
@@ -0,0 +1,128 @@
+package com.zmicierk.webcrawler;
+
+import java.util.Arrays;
+
+/**
+ * The class holds the occurrences of the terms on one page in sparse form: only the terms found on the page are
+ * kept, as pairs of the term id (the position of the term in the term list) and the number of occurrences, in two
+ * primitive arrays ordered by id. With a dictionary of thousands of terms most counts of a page are zero, a page
+ * then costs 8 bytes per term found instead of a count per term of the dictionary.
+ * <p>A row of the statistics file is written either in the dense form, a count for every term
+ * (<code>url,0,3,0,0,1</code>), or in the sparse form, the pairs of the terms found
+ * (<code>url,1:3,4:1</code>).</p>
+ */
+public class TermCounts {
+    /** Ids of the terms found on the page, ascending. */
+    private int[] ids;
+    /** Number of occurrences of every term in ids. */
+    private int[] counts;
+    /** The number of terms found on the page. */
+    private int size;
+    /** Total number of occurrences of all terms. */
+    private long total;
+
+    /**
+     * Initializes an empty set of counts.
+     */
+    public TermCounts() {
+        ids = new int[8];
+        counts = new int[8];
+    }
+
+    /**
+     * Builds the sparse form of the counts of every term.
+     * @param dense Number of occurrences of every term, in the order of the terms.
+     * @return Counts of the terms found.
+     */
+    public static TermCounts of(int[] dense) {
+        TermCounts termCounts = new TermCounts();
+        for (int id = 0; id < dense.length; id++) {
+            termCounts.add(id, dense[id]);
+        }
+        return termCounts;
+    }
+
+    /**
+     * Records the occurrences of a term. Terms are added in the order of their ids, zero counts are skipped.
+     * @param id Id of the term, bigger than the id of the term added before.
+     * @param count Number of occurrences of the term.
+     */
+    public void add(int id, int count) {
+        if (count == 0) return;
+        if (size > 0 && ids[size - 1] >= id) throw new IllegalArgumentException("Term ids must ascend: " + id);
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        ids[size] = id;
+        counts[size++] = count;
+        total += count;
+    }
+
+    /**
+     * Returns the number of terms found on the page.
+     * @return The number of stored pairs.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the term of the pair at the passed position.
+     * @param index Position of the pair.
+     * @return Id of the term.
+     */
+    public int getId(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return ids[index];
+    }
+
+    /**
+     * Returns the number of occurrences of the pair at the passed position.
+     * @param index Position of the pair.
+     * @return Number of occurrences.
+     */
+    public int getCount(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return counts[index];
+    }
+
+    /**
+     * Returns the total number of occurrences of all terms.
+     * @return The sum of the counts.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Writes a count for every term.
+     * @param terms The number of terms.
+     * @return Comma separated string of occurrences, in the order of the terms.
+     */
+    public String toDenseString(int terms) {
+        StringBuilder builder = new StringBuilder(terms * 2);
+        for (int id = 0, next = 0; id < terms; id++) {
+            if (id > 0) builder.append(',');
+            if (next < size && ids[next] == id) {
+                builder.append(counts[next++]);
+            } else {
+                builder.append('0');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes the pairs of the terms found.
+     * @return Comma separated string of id:count pairs, empty if no term was found.
+     */
+    public String toSparseString() {
+        StringBuilder builder = new StringBuilder(size * 6);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(ids[i]).append(':').append(counts[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,1037 @@
+package com.zmicierk.webcrawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The class counts the occurrences of the terms in linear time, without the backtracking of java.util.regex.
+ * <p>Every term is parsed into a Thompson automaton whose threads are ordered by priority (earlier start first,
+ * then the preference of greedy quantifiers and of the left alternative), and the automaton is turned into a DFA
+ * lazily, one transition at a time, while the text is scanned. Because the order of the threads is kept in the DFA
+ * states, a match is the same leftmost-first match java.util.regex finds, and the counts are the same. After a
+ * match the scan restarts at its end; the states which were found to lead to no further match at a position are
+ * remembered, so the text read past the end of a match is never scanned by the same state twice and the total
+ * work stays linear in the length of the text for every term.</p>
+ * <p>The text of a page is mapped once to the character classes shared by all terms, the scan of a term is then
+ * one table lookup per character. The number of DFA states of a term is limited, the cache is cleared when the
+ * limit is reached.</p>
+ * <p>Supported syntax: literals, escaped characters, control, octal and hexadecimal escapes, \Q...\E, the dot,
+ * character classes with ranges and negation, \d \D \s \S \w \W, groups (capturing, named and non-capturing),
+ * alternation and the greedy quantifiers * + ? {n} {n,} {n,m}. Terms using other features (anchors, boundaries, lazy and
+ * possessive quantifiers, back references, lookaround, inline flags, Unicode properties, nested classes, and in
+ * the case sensitive search, which uses canonical equivalence, bracketed classes and non-ASCII literals) or which
+ * can match an empty string as a whole are counted with java.util.regex, the reason is reported by
+ * {@link #getFallbacks()}. A repeated group which can match an empty string is supported: as in java.util.regex, an
+ * iteration matching an empty string leaves the loop, so the automaton repeats only the non-empty matches of the
+ * group and takes the empty ones as the exit.
+ * </p>
+ * <p>An engine is not thread-safe, every worker uses its own {@link #copy()}.</p>
+ */
+public class TermEngine {
+    /** Instruction consuming one character of a set. */
+    private static final int CHAR = 0;
+    /** Instruction forking the thread, the first branch has the higher priority. */
+    private static final int SPLIT = 1;
+    /** Instruction continuing at another instruction. */
+    private static final int JMP = 2;
+    /** Instruction reporting a match. */
+    private static final int MATCH = 3;
+    /** The maximum number of instructions of a term. */
+    private static final int MAX_PROGRAM = 5000;
+    /** The maximum number of DFA states of a term kept at once. */
+    private static final int MAX_STATES = 2000;
+    /** Id of the DFA state without threads. */
+    private static final int DEAD = 0;
+    /** Every code point. */
+    private static final int[] ANY = {0, Character.MAX_CODE_POINT};
+    /** Code points matched by the dot (everything but line terminators). */
+    private static final int[] DOT = {0, 9, 11, 12, 14, 0x84, 0x86, 0x2027, 0x202a, Character.MAX_CODE_POINT};
+    /** Code points of \d. */
+    private static final int[] DIGIT = {'0', '9'};
+    /** Code points of \s. */
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    /** Code points of \w. */
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    /** The terms, in the order of the counts. */
+    private final String[] terms;
+    /** Automaton of every term, null for terms counted with java.util.regex. */
+    private final Program[] programs;
+    /** Pattern of every term counted with java.util.regex, null for the other terms. */
+    private final Pattern[] patterns;
+    /** Terms counted with java.util.regex, with the reason. */
+    private final List<String> fallbacks;
+    /** Character class of every char of the Basic Multilingual Plane. */
+    private final char[] bmpClasses;
+    /** Character class of the supplementary code points. */
+    private final char supplementaryClass;
+    /** The number of character classes. */
+    private final int classCount;
+    /** DFA of every term, null for terms counted with java.util.regex. */
+    private final Dfa[] dfas;
+    /** Character classes of the text being scanned, reused for every page. */
+    private char[] classes = new char[1024];
+
+    /**
+     * Compiles the terms.
+     * @param terms The terms (regular expressions, already checked by Pattern.compile).
+     * @param caseSensitive If true, the search is case sensitive (Pattern.CANON_EQ), else case insensitive
+     * for US-ASCII letters (Pattern.CASE_INSENSITIVE).
+     */
+    public TermEngine(String[] terms, boolean caseSensitive) {
+        this.terms = terms.clone();
+        programs = new Program[terms.length];
+        patterns = new Pattern[terms.length];
+        fallbacks = new ArrayList<>();
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        for (int i = 0; i < terms.length; i++) {
+            try {
+                Node node = new Parser(terms[i], caseSensitive).parse();
+                programs[i] = new Program(node);
+                for (int pc = 0; pc < programs[i].size; pc++) {
+                    int[] ranges = programs[i].ranges[pc];
+                    for (int r = 0; ranges != null && r < ranges.length; r += 2) {
+                        bounds.add(ranges[r]);
+                        bounds.add(ranges[r + 1] + 1);
+                    }
+                }
+            }
+            catch (Exception e) {
+                programs[i] = null;
+                patterns[i] = Pattern.compile(terms[i], caseSensitive ? Pattern.CANON_EQ : Pattern.CASE_INSENSITIVE);
+                fallbacks.add("\"" + terms[i] + "\": " + e.getMessage());
+            }
+        }
+        bounds.remove(Character.MAX_CODE_POINT + 1);
+        int[] lows = new int[bounds.size()];
+        int count = 0;
+        for (int bound : bounds) {
+            lows[count++] = bound;
+        }
+        classCount = count;
+        bmpClasses = new char[Character.MAX_VALUE + 1];
+        for (int k = 0, c = 0; c <= Character.MAX_VALUE; c++) {
+            while (k + 1 < count && lows[k + 1] <= c) k++;
+            bmpClasses[c] = (char) k;
+        }
+        int k = Arrays.binarySearch(lows, Character.MIN_SUPPLEMENTARY_CODE_POINT);
+        supplementaryClass = (char) (k >= 0 ? k : -k - 2);
+        dfas = new Dfa[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            if (programs[i] != null) {
+                programs[i].computeMembers(lows);
+                dfas[i] = new Dfa(programs[i], classCount);
+            }
+        }
+    }
+
+    /**
+     * Initializes an engine sharing the compiled terms of another engine, with its own DFA caches.
+     * @param other The engine to copy.
+     */
+    private TermEngine(TermEngine other) {
+        terms = other.terms;
+        programs = other.programs;
+        patterns = other.patterns;
+        fallbacks = other.fallbacks;
+        bmpClasses = other.bmpClasses;
+        supplementaryClass = other.supplementaryClass;
+        classCount = other.classCount;
+        dfas = new Dfa[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            if (programs[i] != null) dfas[i] = new Dfa(programs[i], classCount);
+        }
+    }
+
+    /**
+     * Returns an engine for another thread, sharing the compiled terms.
+     * @return New engine.
+     */
+    public TermEngine copy() {
+        return new TermEngine(this);
+    }
+
+    /**
+     * Returns the terms counted with java.util.regex.
+     * @return Descriptions of the form "term": unsupported feature.
+     */
+    public List<String> getFallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * Counts the non-overlapping occurrences of every term in the text.
+     * @param text Text of a page.
+     * @return Number of occurrences of every term, in the order of the terms.
+     */
+    public int[] count(CharSequence text) {
+        int length = classify(text);
+        int[] counts = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            if (dfas[i] != null) {
+                counts[i] = countDfa(dfas[i], length);
+            } else {
+                Matcher matcher = patterns[i].matcher(text);
+                while (matcher.find()) {
+                    counts[i]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Maps the code points of the text to their character classes.
+     * @param chars Text of a page.
+     * @return The number of code points.
+     */
+    private int classify(CharSequence chars) {
+        if (classes.length < chars.length()) {
+            classes = new char[Math.max(chars.length(), classes.length * 2)];
+        }
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                classes[length++] = supplementaryClass;
+                i++;
+            } else {
+                classes[length++] = bmpClasses[c];
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Counts the leftmost-first non-overlapping matches of a term in the classified text. A scan from a position
+     * runs the DFA until its state has no threads left; the last matching position is the end of the match and
+     * the next scan starts there. The states passed after the end of the match are remembered with their
+     * positions, a later scan reaching one of them stops at once.
+     * @param dfa DFA of the term.
+     * @param length The number of classified code points.
+     * @return The number of matches.
+     */
+    private int countDfa(Dfa dfa, int length) {
+        Set<Long> failing = null;
+        int[] trail = new int[16];
+        int count = 0;
+        int pos = 0;
+        while (pos < length) {
+            int state = dfa.start;
+            int end = -1;
+            int trailSize = 0;
+            int trailStart = 0;
+            int p = pos;
+            while (true) {
+                if (dfa.accepting[state]) {
+                    end = p;
+                    trailSize = 0;
+                    trailStart = p + 1;
+                } else if (end >= 0) {
+                    if (state == DEAD || (failing != null && failing.contains(((long) state << 32) | p))) break;
+                    if (trailSize == trail.length) trail = Arrays.copyOf(trail, trailSize * 2);
+                    trail[trailSize++] = state;
+                }
+                if (p == length) break;
+                int flushes = dfa.flushes;
+                state = dfa.step(state, classes[p++]);
+                if (dfa.flushes != flushes) {
+                    failing = null;
+                    trailSize = 0;
+                    trailStart = p;
+                }
+            }
+            if (end < 0) break;
+            count++;
+            if (trailSize > 0) {
+                if (failing == null) failing = new HashSet<>();
+                for (int i = 0; i < trailSize; i++) {
+                    failing.add(((long) trail[i] << 32) | (trailStart + i));
+                }
+            }
+            pos = end;
+        }
+        return count;
+    }
+
+    /**
+     * Sorts and merges code point ranges.
+     * @param ranges Ranges as pairs of the first and the last code point.
+     * @return Sorted disjoint ranges.
+     */
+    private static int[] normalize(List<int[]> ranges) {
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[ranges.size() * 2];
+        int size = 0;
+        for (int[] range : ranges) {
+            if (size > 0 && range[0] <= merged[size - 1] + 1) {
+                merged[size - 1] = Math.max(merged[size - 1], range[1]);
+            } else {
+                merged[size++] = range[0];
+                merged[size++] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * Returns the code points not in the passed ranges.
+     * @param ranges Sorted disjoint ranges.
+     * @return Sorted disjoint ranges of the complement.
+     */
+    private static int[] complement(int[] ranges) {
+        List<int[]> result = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) result.add(new int[] {next, ranges[i] - 1});
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_CODE_POINT) result.add(new int[] {next, Character.MAX_CODE_POINT});
+        return normalize(result);
+    }
+
+    /**
+     * Adds the other case of the US-ASCII letters to the ranges (the case insensitive search of java.util.regex
+     * without UNICODE_CASE).
+     * @param ranges Sorted disjoint ranges.
+     * @return Sorted disjoint ranges with both cases of every letter.
+     */
+    private static int[] fold(int[] ranges) {
+        List<int[]> result = new ArrayList<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            result.add(new int[] {ranges[i], ranges[i + 1]});
+            int lo = Math.max(ranges[i], 'a');
+            int hi = Math.min(ranges[i + 1], 'z');
+            if (lo <= hi) result.add(new int[] {lo - 32, hi - 32});
+            lo = Math.max(ranges[i], 'A');
+            hi = Math.min(ranges[i + 1], 'Z');
+            if (lo <= hi) result.add(new int[] {lo + 32, hi + 32});
+        }
+        return normalize(result);
+    }
+
+    /**
+     * Node of the syntax tree of a term.
+     */
+    private static final class Node {
+        /** Node matching one code point of a set. */
+        static final int SET = 0;
+        /** Node matching its children one after another (no children - the empty string). */
+        static final int CAT = 1;
+        /** Node matching one of its children, the first has the highest priority. */
+        static final int ALT = 2;
+        /** Node matching its child from min to max times (max -1 - unbounded), as many times as possible. */
+        static final int REPEAT = 3;
+        /** Kind of the node. */
+        final int kind;
+        /** Code point ranges of a SET node. */
+        final int[] ranges;
+        /** Children of a CAT, ALT or REPEAT node. */
+        final List<Node> children;
+        /** The minimum number of repetitions of a REPEAT node. */
+        final int min;
+        /** The maximum number of repetitions of a REPEAT node, -1 - unbounded. */
+        final int max;
+
+        /**
+         * Initializes the node.
+         * @param kind Kind of the node.
+         * @param ranges Code point ranges of a SET node.
+         * @param children Children of a CAT, ALT or REPEAT node.
+         * @param min The minimum number of repetitions of a REPEAT node.
+         * @param max The maximum number of repetitions of a REPEAT node.
+         */
+        Node(int kind, int[] ranges, List<Node> children, int min, int max) {
+            this.kind = kind;
+            this.ranges = ranges;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Recursive descent parser of the supported subset of the java.util.regex syntax. A term using anything else
+     * is rejected with the name of the feature.
+     */
+    private static final class Parser {
+        /** The term. */
+        private final String term;
+        /** If false, the US-ASCII letters match both cases. */
+        private final boolean caseSensitive;
+        /** Position of the next character of the term. */
+        private int pos;
+        /** true while a character class is parsed, its letters are folded when the class is complete. */
+        private boolean inClass;
+
+        /**
+         * Initializes the parser.
+         * @param term The term.
+         * @param caseSensitive If false, the US-ASCII letters match both cases.
+         */
+        Parser(String term, boolean caseSensitive) {
+            this.term = term;
+            this.caseSensitive = caseSensitive;
+        }
+
+        /**
+         * Parses the whole term.
+         * @return Syntax tree of the term.
+         * @throws Exception if the term uses an unsupported feature.
+         */
+        Node parse() throws Exception {
+            Node node = parseAlternation();
+            if (pos < term.length()) throw new Exception("unbalanced parenthesis");
+            return node;
+        }
+
+        /**
+         * Parses alternatives separated by '|'.
+         * @return Syntax tree of the alternation.
+         * @throws Exception if the term uses an unsupported feature.
+         */
+        private Node parseAlternation() throws Exception {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseConcatenation());
+            while (pos < term.length() && term.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(parseConcatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new Node(Node.ALT, null, alternatives, 0, 0);
+        }
+
+        /**
+         * Parses a sequence of quantified atoms.
+         * @return Syntax tree of the sequence.
+         * @throws Exception if the term uses an unsupported feature.
+         */
+        private Node parseConcatenation() throws Exception {
+            List<Node> items = new ArrayList<>();
+            while (pos < term.length() && term.charAt(pos) != '|' && term.charAt(pos) != ')') {
+                Node atom = parseAtom();
+                while (pos < term.length()) {
+                    char c = term.charAt(pos);
+                    int min;
+                    int max;
+                    if (c == '*') {
+                        min = 0;
+                        max = -1;
+                    } else if (c == '+') {
+                        min = 1;
+                        max = -1;
+                    } else if (c == '?') {
+                        min = 0;
+                        max = 1;
+                    } else if (c == '{') {
+                        int close = term.indexOf('}', pos);
+                        if (close < 0 || !term.substring(pos + 1, close).matches("\\d{1,4}(,\\d{0,4})?")) {
+                            throw new Exception("repetition " + term.substring(pos));
+                        }
+                        String[] bounds = term.substring(pos + 1, close).split(",", -1);
+                        min = Integer.parseInt(bounds[0]);
+                        max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+                        pos = close;
+                    } else {
+                        break;
+                    }
+                    pos++;
+                    if (pos < term.length() && term.charAt(pos) == '?') throw new Exception("lazy quantifier");
+                    if (pos < term.length() && term.charAt(pos) == '+') throw new Exception("possessive quantifier");
+                    List<Node> child = new ArrayList<>();
+                    child.add(atom);
+                    atom = new Node(Node.REPEAT, null, child, min, max);
+                }
+                items.add(atom);
+            }
+            return items.size() == 1 ? items.get(0) : new Node(Node.CAT, null, items, 0, 0);
+        }
+
+        /**
+         * Parses a group, a character class, the dot, an escape sequence or a literal character.
+         * @return Syntax tree of the atom.
+         * @throws Exception if the term uses an unsupported feature.
+         */
+        private Node parseAtom() throws Exception {
+            char c = term.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (term.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (term.startsWith("?<", pos) && pos + 2 < term.length()
+                            && Character.isLetter(term.charAt(pos + 2))) {
+                        pos = term.indexOf('>', pos) + 1;
+                    } else if (term.startsWith("?=", pos) || term.startsWith("?!", pos)) {
+                        throw new Exception("lookahead");
+                    } else if (term.startsWith("?<", pos)) {
+                        throw new Exception("lookbehind");
+                    } else if (term.startsWith("?>", pos)) {
+                        throw new Exception("atomic group");
+                    } else if (term.startsWith("?", pos)) {
+                        throw new Exception("inline flags");
+                    }
+                    Node group = parseAlternation();
+                    if (pos >= term.length() || term.charAt(pos) != ')') throw new Exception("unbalanced parenthesis");
+                    pos++;
+                    return group;
+                case '[':
+                    if (caseSensitive) throw new Exception("character class with canonical equivalence");
+                    return set(parseClass());
+                case '.':
+                    return set(DOT);
+                case '^':
+                case '$':
+                    throw new Exception("anchor " + c);
+                case '\\':
+                    if (term.startsWith("Q", pos)) {
+                        int end = term.indexOf("\\E", pos);
+                        String quoted = term.substring(pos + 1, end < 0 ? term.length() : end);
+                        pos = end < 0 ? term.length() : end + 2;
+                        List<Node> items = new ArrayList<>();
+                        for (int i = 0; i < quoted.length(); i++) {
+                            items.add(set(literal(quoted.charAt(i))));
+                        }
+                        return new Node(Node.CAT, null, items, 0, 0);
+                    }
+                    return set(parseEscape());
+                default:
+                    return set(literal(c));
+            }
+        }
+
+        /**
+         * Parses the content of a character class after '['.
+         * @return Code point ranges of the class.
+         * @throws Exception if the class uses an unsupported feature.
+         */
+        private int[] parseClass() throws Exception {
+            boolean negated = term.startsWith("^", pos);
+            if (negated) pos++;
+            inClass = true;
+            if (term.startsWith("]", pos)) throw new Exception("']' at the start of a character class");
+            List<int[]> items = new ArrayList<>();
+            while (true) {
+                if (pos >= term.length()) throw new Exception("unclosed character class");
+                char c = term.charAt(pos);
+                if (c == ']') {
+                    pos++;
+                    break;
+                }
+                if (c == '[') throw new Exception("nested character class");
+                if (term.startsWith("&&", pos)) throw new Exception("character class intersection");
+                int[] item;
+                if (c == '\\') {
+                    pos++;
+                    item = parseEscape();
+                } else {
+                    pos++;
+                    item = literal(c);
+                }
+                if (term.startsWith("-", pos) && pos + 1 < term.length() && term.charAt(pos + 1) != ']') {
+                    pos++;
+                    int[] last;
+                    if (term.charAt(pos) == '\\') {
+                        pos++;
+                        last = parseEscape();
+                    } else if (term.charAt(pos) == '[') {
+                        throw new Exception("nested character class");
+                    } else {
+                        last = literal(term.charAt(pos++));
+                    }
+                    if (item.length != 2 || item[0] != item[1] || last.length != 2 || last[0] != last[1]) {
+                        throw new Exception("range with a predefined class");
+                    }
+                    item = new int[] {item[0], last[0]};
+                }
+                for (int i = 0; i < item.length; i += 2) {
+                    items.add(new int[] {item[i], item[i + 1]});
+                }
+            }
+            inClass = false;
+            int[] ranges = caseSensitive ? normalize(items) : fold(normalize(items));
+            return negated ? complement(ranges) : ranges;
+        }
+
+        /**
+         * Parses an escape sequence after '\'.
+         * @return Code point ranges of the escape sequence.
+         * @throws Exception if the escape sequence is not supported.
+         */
+        private int[] parseEscape() throws Exception {
+            char c = term.charAt(pos++);
+            switch (c) {
+                case 'd': return DIGIT;
+                case 'D': return complement(DIGIT);
+                case 's': return SPACE;
+                case 'S': return complement(SPACE);
+                case 'w': return WORD;
+                case 'W': return complement(WORD);
+                case 't': return literal('\t');
+                case 'n': return literal('\n');
+                case 'r': return literal('\r');
+                case 'f': return literal('\f');
+                case 'a': return literal('\u0007');
+                case 'e': return literal('\u001b');
+                case '0': {
+                    int value = 0;
+                    int digits = 0;
+                    while (pos < term.length() && digits < 3 && term.charAt(pos) >= '0' && term.charAt(pos) <= '7'
+                            && value * 8 + term.charAt(pos) - '0' <= 0377) {
+                        value = value * 8 + term.charAt(pos++) - '0';
+                        digits++;
+                    }
+                    return literal(value);
+                }
+                case 'x': {
+                    if (term.startsWith("{", pos)) throw new Exception("escape \\x{...}");
+                    pos += 2;
+                    return literal(Integer.parseInt(term.substring(pos - 2, pos), 16));
+                }
+                case 'u': {
+                    pos += 4;
+                    return literal(Integer.parseInt(term.substring(pos - 4, pos), 16));
+                }
+                case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z':
+                    throw new Exception("boundary matcher \\" + c);
+                case 'k':
+                    throw new Exception("back reference");
+                case 'p': case 'P':
+                    throw new Exception("character property \\" + c);
+                default:
+                    if (c >= '1' && c <= '9') throw new Exception("back reference");
+                    if (Character.isLetter(c)) throw new Exception("escape \\" + c);
+                    return literal(c);
+            }
+        }
+
+        /**
+         * Returns the ranges of a literal code point, with the other case of a US-ASCII letter if the search
+         * is case insensitive (inside a character class the whole class is folded at its end).
+         * @param c The code point.
+         * @return Code point ranges.
+         * @throws Exception if the code point can not be matched exactly by the automaton.
+         */
+        private int[] literal(int c) throws Exception {
+            if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                throw new Exception("surrogate character");
+            }
+            if (caseSensitive && c > 0x7f) throw new Exception("non-ASCII character with canonical equivalence");
+            int[] ranges = {c, c};
+            return caseSensitive || inClass ? ranges : fold(ranges);
+        }
+
+        /**
+         * Wraps code point ranges into a SET node.
+         * @param ranges Code point ranges.
+         * @return SET node.
+         */
+        private static Node set(int[] ranges) {
+            return new Node(Node.SET, ranges, null, 0, 0);
+        }
+    }
+
+    /**
+     * Thompson automaton of a term. Instruction 0 starts the unanchored search: it forks into the term (higher
+     * priority) and into a thread which skips one code point and forks again, so the threads of earlier starting
+     * positions always have the higher priority.
+     */
+    private static final class Program {
+        /** Operation of every instruction. */
+        int[] op = new int[64];
+        /** Target of JMP, first branch of SPLIT. */
+        int[] x = new int[64];
+        /** Second branch of SPLIT. */
+        int[] y = new int[64];
+        /** Code point ranges of CHAR. */
+        int[][] ranges = new int[64][];
+        /** Whether a CHAR instruction accepts a character class, indexed by instruction and class. */
+        boolean[][] members;
+        /** The number of instructions. */
+        int size;
+
+        /**
+         * Compiles the syntax tree.
+         * @param node Syntax tree of the term.
+         * @throws Exception if the automaton is too large or the term can match an empty string.
+         */
+        Program(Node node) throws Exception {
+            emit(SPLIT, 3, 1, null);
+            emit(CHAR, 0, 0, ANY);
+            emit(JMP, 0, 0, null);
+            compile(node);
+            emit(MATCH, 0, 0, null);
+            if (matchesEmpty(node)) throw new Exception("matches an empty string");
+        }
+
+        /**
+         * Appends an instruction.
+         * @param operation Operation.
+         * @param first Target of JMP, first branch of SPLIT.
+         * @param second Second branch of SPLIT.
+         * @param set Code point ranges of CHAR.
+         * @return Index of the instruction.
+         * @throws Exception if the automaton is too large.
+         */
+        private int emit(int operation, int first, int second, int[] set) throws Exception {
+            if (size == MAX_PROGRAM) throw new Exception("repetition too large");
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            op[size] = operation;
+            x[size] = first;
+            y[size] = second;
+            ranges[size] = set;
+            return size++;
+        }
+
+        /**
+         * Appends the instructions of a node.
+         * @param node Syntax tree.
+         * @throws Exception if the automaton is too large.
+         */
+        private void compile(Node node) throws Exception {
+            switch (node.kind) {
+                case Node.SET:
+                    emit(CHAR, 0, 0, node.ranges);
+                    break;
+                case Node.CAT:
+                    for (Node child : node.children) {
+                        compile(child);
+                    }
+                    break;
+                case Node.ALT: {
+                    List<Integer> jumps = new ArrayList<>();
+                    for (int i = 0; i < node.children.size() - 1; i++) {
+                        int split = emit(SPLIT, size + 1, 0, null);
+                        compile(node.children.get(i));
+                        jumps.add(emit(JMP, 0, 0, null));
+                        y[split] = size;
+                    }
+                    compile(node.children.get(node.children.size() - 1));
+                    for (int jump : jumps) {
+                        x[jump] = size;
+                    }
+                    break;
+                }
+                default:
+                    compileRepeat(node.children.get(0), node.min, node.max);
+            }
+        }
+
+        /**
+         * Appends the instructions of a repetition. Like java.util.regex, the loop is left after an iteration
+         * which matched an empty string, so the empty paths of the body lead to the end of the repetition and only
+         * the paths which consumed a character continue with the next iteration. The automaton has no loop which
+         * consumes nothing, and the loop is not an exception to the linear time.
+         * @param child Syntax tree of the body.
+         * @param min The minimum number of repetitions.
+         * @param max The maximum number of repetitions, -1 - unbounded.
+         * @throws Exception if the automaton is too large.
+         */
+        private void compileRepeat(Node child, int min, int max) throws Exception {
+            List<Integer> exits = new ArrayList<>();
+            for (int i = 0; i < min; i++) {
+                compileIteration(child, exits);
+            }
+            if (max < 0) {
+                int split = emit(SPLIT, size + 1, 0, null);
+                compileIteration(child, exits);
+                emit(JMP, split, 0, null);
+                y[split] = size;
+            } else {
+                List<Integer> splits = new ArrayList<>();
+                for (int i = min; i < max; i++) {
+                    splits.add(emit(SPLIT, size + 1, 0, null));
+                    compileIteration(child, exits);
+                }
+                for (int split : splits) {
+                    y[split] = size;
+                }
+            }
+            for (int exit : exits) {
+                x[exit] = size;
+            }
+        }
+
+        /**
+         * Appends the instructions of a node, keeping its empty matches apart from the others: the paths which
+         * consumed a character continue after the instructions, the paths which consumed nothing end with a JMP
+         * whose target is set by the caller. The priorities of the paths are kept.
+         * @param node Syntax tree.
+         * @param empties Receives the JMP instructions of the empty paths.
+         * @throws Exception if the automaton is too large.
+         */
+        private void compileIteration(Node node, List<Integer> empties) throws Exception {
+            if (!matchesEmpty(node)) {
+                compile(node);
+                return;
+            }
+            switch (node.kind) {
+                case Node.CAT: {
+                    // Every child can match an empty string. Each child is compiled once while nothing has been
+                    // consumed, its empty paths lead to the next such copy, and once for the rest of the sequence.
+                    int count = node.children.size();
+                    if (count == 0) {
+                        empties.add(emit(JMP, 0, 0, null));
+                        break;
+                    }
+                    int[] rests = new int[count];
+                    List<Integer> pending = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        for (int jump : pending) {
+                            x[jump] = size;
+                        }
+                        pending.clear();
+                        compileIteration(node.children.get(i), pending);
+                        rests[i] = emit(JMP, 0, 0, null);
+                    }
+                    empties.addAll(pending);
+                    for (int i = 0; i < count; i++) {
+                        x[rests[i]] = size;
+                        if (i + 1 < count) compile(node.children.get(i + 1));
+                    }
+                    break;
+                }
+                case Node.ALT: {
+                    List<Integer> jumps = new ArrayList<>();
+                    for (int i = 0; i < node.children.size() - 1; i++) {
+                        int split = emit(SPLIT, size + 1, 0, null);
+                        compileIteration(node.children.get(i), empties);
+                        jumps.add(emit(JMP, 0, 0, null));
+                        y[split] = size;
+                    }
+                    compileIteration(node.children.get(node.children.size() - 1), empties);
+                    for (int jump : jumps) {
+                        x[jump] = size;
+                    }
+                    break;
+                }
+                default: {
+                    // The first iteration is the only one which can leave the repetition with nothing consumed.
+                    if (node.max == 0) {
+                        empties.add(emit(JMP, 0, 0, null));
+                        break;
+                    }
+                    int split = node.min == 0 ? emit(SPLIT, size + 1, 0, null) : -1;
+                    compileIteration(node.children.get(0), empties);
+                    compileRepeat(node.children.get(0), Math.max(node.min - 1, 0), node.max < 0 ? -1 : node.max - 1);
+                    if (split >= 0) {
+                        int end = emit(JMP, 0, 0, null);
+                        y[split] = size;
+                        empties.add(emit(JMP, 0, 0, null));
+                        x[end] = size;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks whether a node can match an empty string.
+         * @param node Syntax tree.
+         * @return true if the node matches an empty string.
+         */
+        private static boolean matchesEmpty(Node node) {
+            switch (node.kind) {
+                case Node.SET:
+                    return false;
+                case Node.CAT:
+                    for (Node child : node.children) {
+                        if (!matchesEmpty(child)) return false;
+                    }
+                    return true;
+                case Node.ALT:
+                    for (Node child : node.children) {
+                        if (matchesEmpty(child)) return true;
+                    }
+                    return false;
+                default:
+                    return node.min == 0 || matchesEmpty(node.children.get(0));
+            }
+        }
+
+        /**
+         * Computes which character classes every CHAR instruction accepts.
+         * @param lows The first code point of every character class.
+         */
+        void computeMembers(int[] lows) {
+            members = new boolean[size][];
+            for (int pc = 0; pc < size; pc++) {
+                if (op[pc] != CHAR) continue;
+                members[pc] = new boolean[lows.length];
+                int[] set = ranges[pc];
+                for (int k = 0, r = 0; k < lows.length; k++) {
+                    while (r < set.length && set[r + 1] < lows[k]) r += 2;
+                    members[pc][k] = r < set.length && set[r] <= lows[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Lazily built DFA of a term. A state is the list of the CHAR and MATCH instructions of the live threads in
+     * the order of their priority; the threads after a MATCH are dropped, as they can only lead to matches
+     * java.util.regex would not prefer.
+     */
+    private static final class Dfa {
+        /** Automaton of the term. */
+        private final Program program;
+        /** The number of character classes. */
+        private final int classCount;
+        /** Id of every state, keyed by its instruction list. */
+        private final Map<String, Integer> ids = new HashMap<>();
+        /** Instruction list of every state, indexed by id. */
+        private final List<int[]> lists = new ArrayList<>();
+        /** Whether every state reports a match, indexed by id. */
+        boolean[] accepting;
+        /** Transitions, indexed by state id * classCount + class, -1 - not computed yet. */
+        private int[] next;
+        /** Id of the state starting a search. */
+        int start;
+        /** The number of times the cache was cleared, the ids of the states change every time. */
+        int flushes;
+        /** Generation in which every instruction was last added to a list. */
+        private final int[] marks;
+        /** Current generation of marks. */
+        private int generation;
+        /** Stack of the closure walk. */
+        private final int[] stack;
+        /** Instruction list under construction. */
+        private final int[] buffer;
+
+        /**
+         * Initializes an empty DFA.
+         * @param program Automaton of the term.
+         * @param classCount The number of character classes.
+         */
+        Dfa(Program program, int classCount) {
+            this.program = program;
+            this.classCount = classCount;
+            marks = new int[program.size];
+            stack = new int[program.size * 2 + 2];
+            buffer = new int[program.size];
+            reset();
+        }
+
+        /**
+         * Clears the cache, keeping only the dead and the start state.
+         */
+        private void reset() {
+            ids.clear();
+            lists.clear();
+            accepting = new boolean[16];
+            next = new int[16 * classCount];
+            Arrays.fill(next, -1);
+            intern(new int[0]);
+            generation++;
+            start = intern(Arrays.copyOf(buffer, addClosure(0, 0)));
+        }
+
+        /**
+         * Returns the state reached from the passed state by a character of the passed class.
+         * @param state Id of the state.
+         * @param cls Character class.
+         * @return Id of the next state (after a flush, in the new numbering).
+         */
+        int step(int state, int cls) {
+            int target = next[state * classCount + cls];
+            return target >= 0 ? target : compute(state, cls);
+        }
+
+        /**
+         * Computes a transition and caches it.
+         * @param state Id of the state.
+         * @param cls Character class.
+         * @return Id of the next state.
+         */
+        private int compute(int state, int cls) {
+            int[] list = lists.get(state);
+            generation++;
+            int size = 0;
+            for (int pc : list) {
+                if (program.op[pc] == MATCH) break;
+                if (program.members[pc][cls]) {
+                    size = addClosure(pc + 1, size);
+                    if (size > 0 && program.op[buffer[size - 1]] == MATCH) break;
+                }
+            }
+            int[] target = Arrays.copyOf(buffer, size);
+            if (lists.size() >= MAX_STATES) {
+                reset();
+                flushes++;
+                return intern(target);
+            }
+            int id = intern(target);
+            next[state * classCount + cls] = id;
+            return id;
+        }
+
+        /**
+         * Appends the CHAR and MATCH instructions reachable from an instruction without consuming a character,
+         * in the order of priority, skipping the instructions already in the list. Stops at a MATCH.
+         * @param pc The first instruction.
+         * @param size The number of instructions already in the buffer.
+         * @return The number of instructions in the buffer.
+         */
+        private int addClosure(int pc, int size) {
+            int top = 0;
+            stack[top++] = pc;
+            while (top > 0) {
+                int current = stack[--top];
+                if (marks[current] == generation) continue;
+                marks[current] = generation;
+                switch (program.op[current]) {
+                    case JMP:
+                        stack[top++] = program.x[current];
+                        break;
+                    case SPLIT:
+                        stack[top++] = program.y[current];
+                        stack[top++] = program.x[current];
+                        break;
+                    case MATCH:
+                        buffer[size++] = current;
+                        return size;
+                    default:
+                        buffer[size++] = current;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Returns the id of a state, adding the state if it is new.
+         * @param list Instruction list of the state.
+         * @return Id of the state.
+         */
+        private int intern(int[] list) {
+            char[] key = new char[list.length];
+            for (int i = 0; i < list.length; i++) {
+                key[i] = (char) list[i];
+            }
+            String name = new String(key);
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            id = lists.size();
+            lists.add(list);
+            ids.put(name, id);
+            if (id == accepting.length) {
+                accepting = Arrays.copyOf(accepting, id * 2);
+                int filled = next.length;
+                next = Arrays.copyOf(next, filled * 2);
+                Arrays.fill(next, filled, next.length, -1);
+            }
+            accepting[id] = list.length > 0 && program.op[list[list.length - 1]] == MATCH;
+            return id;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.zmicierk.webcrawler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import com.gargoylesoftware.htmlunit.html.DomElement;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.DomText;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * The class extracts the visible text of a page for the term search.
+ * Unlike HtmlPage.asText, which renders the page with the layout rules of a browser, the extractor walks the DOM
+ * tree once and copies the text nodes into a buffer which is reused for every page processed by the same extractor.
+ * Whitespace is collapsed, block elements are separated by line breaks, the content of script, style, noscript and
+ * template elements and of hidden elements (hidden attribute, display:none or visibility:hidden in the style
+ * attribute) is skipped. An extractor is not thread-safe, every worker uses its own.
+ */
+public class TextExtractor {
+    /**
+     * Defines the part of the page the text is taken from:
+     * WHOLE - the whole document, including the title
+     * BODY - the body of the document
+     * MAIN - the body of the document without nav and footer elements
+     * RENDER - HtmlPage.asText (the slow layout-aware rendering)
+     */
+    public enum Scope { WHOLE, BODY, MAIN, RENDER }
+
+    /** Elements whose content is never visible. */
+    private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList(
+            "script", "style", "noscript", "template", "head"));
+    /** Elements which are additionally skipped in the MAIN scope. */
+    private static final Set<String> SKIPPED_MAIN = new HashSet<>(Arrays.asList("nav", "footer"));
+    /** Elements which start and end on a new line. */
+    private static final Set<String> BLOCKS = new HashSet<>(Arrays.asList(
+            "address", "article", "aside", "blockquote", "body", "br", "caption", "dd", "div", "dl", "dt",
+            "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header",
+            "hr", "html", "li", "main", "nav", "ol", "option", "p", "pre", "section", "table", "td", "th", "title",
+            "tr", "ul"));
+    /** Capacity above which the buffer is not kept for the next page. */
+    private static final int MAX_KEPT_CAPACITY = 1 << 22;
+    /** The part of the page the text is taken from. */
+    private final Scope scope;
+    /** Buffer receiving the text, reused for every page. */
+    private StringBuilder buffer = new StringBuilder(1 << 16);
+    /** true if whitespace was met since the last character written to the buffer. */
+    private boolean pendingSpace;
+
+    /**
+     * Initializes the extractor.
+     * @param scope The part of the page the text is taken from.
+     */
+    public TextExtractor(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Parses the name of a scope given on the command line.
+     * @param name whole, body, main or render (case insensitive).
+     * @return The scope.
+     * @throws Exception if the name is unknown.
+     */
+    public static Scope parseScope(String name) throws Exception {
+        try {
+            return Scope.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new Exception("Unknown text scope: " + name);
+        }
+    }
+
+    /**
+     * Extracts the visible text of the passed page. The returned sequence is the internal buffer of the extractor,
+     * it stays valid until the next call of this method.
+     * @param page The page to extract the text from.
+     * @return Visible text of the page.
+     */
+    public CharSequence extract(HtmlPage page) {
+        if (buffer.capacity() > MAX_KEPT_CAPACITY) {
+            buffer = new StringBuilder(1 << 16);
+        }
+        buffer.setLength(0);
+        pendingSpace = false;
+        if (scope == Scope.RENDER) {
+            buffer.append(page.asText());
+            return buffer;
+        }
+        DomNode root = scope == Scope.WHOLE ? page.getDocumentElement() : page.getBody();
+        if (root == null) return buffer;
+        if (scope == Scope.WHOLE) {
+            appendText(page.getTitleText());
+            separate();
+        }
+        walk(root);
+        int length = buffer.length();
+        if (length > 0 && buffer.charAt(length - 1) == '\n') buffer.setLength(length - 1);
+        return buffer;
+    }
+
+    /**
+     * Walks the subtree of the passed node in document order without recursion,
+     * writing the text of the visible nodes to the buffer.
+     * @param root The root of the subtree (its own visibility is not checked).
+     */
+    private void walk(DomNode root) {
+        DomNode node = root.getFirstChild();
+        while (node != null) {
+            boolean descend = false;
+            if (node instanceof DomText) {
+                appendText(((DomText) node).getData());
+            } else if (node instanceof DomElement) {
+                DomElement element = (DomElement) node;
+                String name = element.getLocalName();
+                if (isVisible(element, name)) {
+                    if (BLOCKS.contains(name)) separate();
+                    descend = node.getFirstChild() != null;
+                }
+            }
+            if (descend) {
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null) {
+                node = node.getParentNode();
+                if (node != root && node instanceof DomElement && BLOCKS.contains(node.getLocalName())) separate();
+            }
+            if (node == root) break;
+            node = node.getNextSibling();
+        }
+    }
+
+    /**
+     * Checks whether the content of the element is visible.
+     * @param element The element to check.
+     * @param name Local name of the element.
+     * @return false if the element and its content must be skipped.
+     */
+    private boolean isVisible(DomElement element, String name) {
+        if (SKIPPED.contains(name)) return false;
+        if (scope == Scope.MAIN && SKIPPED_MAIN.contains(name)) return false;
+        if (element.hasAttribute("hidden")) return false;
+        String style = element.getAttribute("style");
+        if (style.isEmpty()) return true;
+        String compact = style.replace(" ", "").toLowerCase(Locale.ROOT);
+        return !compact.contains("display:none") && !compact.contains("visibility:hidden");
+    }
+
+    /**
+     * Writes the passed text to the buffer, collapsing every run of whitespace into a single space.
+     * @param text Text of a node.
+     */
+    private void appendText(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\u00a0' || Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace) {
+                int length = buffer.length();
+                if (length > 0 && buffer.charAt(length - 1) != '\n') buffer.append(' ');
+                pendingSpace = false;
+            }
+            buffer.append(c);
+        }
+    }
+
+    /**
+     * Ends the current line, so that the text of neighbouring blocks is not glued together.
+     */
+    private void separate() {
+        int length = buffer.length();
+        if (length > 0 && buffer.charAt(length - 1) != '\n') buffer.append('\n');
+        pendingSpace = false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.zmicierk.webcrawler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The class records the aliases of the pages met during the crawl, so that a document reachable under several URLs
+ * is processed once. The key of a loaded page is its canonical URL (<code>&lt;link rel="canonical"&gt;</code>) or,
+ * without one, its final URL after redirects. The requested URL and the final URL become aliases of the key.
+ * <p>A link is resolved through the recorded aliases before it is queued: a link to a known alias is replaced by
+ * its key, so a redirect chain or a duplicate URL is never fetched again once it has been seen. A loaded page whose
+ * key was already claimed by another page is a duplicate, it is neither reported nor expanded.</p>
+ * <p>URLs are kept as ids of a {@link UrlStore}, an alias costs 4 bytes.</p>
+ * <p>All methods are thread-safe.</p>
+ */
+public class UrlAliases {
+    /** The longest chain of aliases followed (guards against cycles). */
+    private static final int MAX_CHAIN = 8;
+    /** Store holding the URLs. */
+    private final UrlStore store;
+    /** Id of the key of every alias plus one (0 - not an alias), indexed by id. */
+    private int[] targets = new int[1024];
+    /** Ids of the keys of the processed pages. */
+    private final BitSet claimed = new BitSet();
+    /** The number of loaded pages whose final URL differs from the requested one. */
+    private long redirects;
+    /** The number of loaded pages whose canonical URL differs from the final one. */
+    private long canonicals;
+    /** The number of loaded pages dropped as duplicates. */
+    private long duplicates;
+    /** The number of links replaced by the key of a known alias. */
+    private long resolved;
+
+    /**
+     * Initializes an empty set of aliases.
+     * @param store Store holding the URLs.
+     */
+    public UrlAliases(UrlStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Registers a loaded page and claims its key.
+     * @param requested Link the page was requested with.
+     * @param finalUrl Link the page was loaded from after redirects.
+     * @param canonical Canonical link declared by the page, null if there is none.
+     * @return The key of the page (the URL it is reported under), or null if the key was already claimed.
+     */
+    public synchronized String claim(String requested, String finalUrl, String canonical) {
+        String key = canonical != null ? canonical : finalUrl;
+        int keyId = store.intern(key);
+        if (!requested.equals(finalUrl)) redirects++;
+        if (!key.equals(finalUrl)) canonicals++;
+        alias(requested, keyId);
+        alias(finalUrl, keyId);
+        if (claimed.get(keyId)) {
+            duplicates++;
+            return null;
+        }
+        claimed.set(keyId);
+        return key;
+    }
+
+    /**
+     * Records the passed URL as an alias of the key.
+     * @param url Link to the page.
+     * @param keyId Id of the key.
+     */
+    private void alias(String url, int keyId) {
+        int id = store.intern(url);
+        if (id == keyId) return;
+        if (id >= targets.length) {
+            targets = Arrays.copyOf(targets, Math.max(id + 1, targets.length * 2));
+        }
+        targets[id] = keyId + 1;
+    }
+
+    /**
+     * Follows the recorded aliases of the passed link.
+     * @param url Link to a page.
+     * @return The key the link leads to, or the link itself if it is not an alias.
+     */
+    public synchronized String resolve(String url) {
+        int id = store.lookup(url);
+        int start = id;
+        for (int i = 0; i < MAX_CHAIN && id >= 0 && id < targets.length && targets[id] != 0; i++) {
+            id = targets[id] - 1;
+        }
+        if (id == start) return url;
+        resolved++;
+        return store.get(id);
+    }
+
+    /**
+     * Checks whether a page with the passed key has been processed.
+     * @param url Link to a page.
+     * @return true if the link is the key of a processed page.
+     */
+    public synchronized boolean isClaimed(String url) {
+        int id = store.lookup(url);
+        return id >= 0 && claimed.get(id);
+    }
+
+    /**
+     * Describes the aliases found during the crawl.
+     * @return One line: the redirects, the canonical links, the dropped duplicates and the resolved links.
+     */
+    public synchronized String summary() {
+        return "Aliases: " + redirects + " redirects, " + canonicals + " canonical links, " + duplicates
+                + " duplicate pages dropped, " + resolved + " links resolved to known pages";
+    }
+}
@@ -0,0 +1,138 @@
+package com.zmicierk.webcrawler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The class is a list of pages kept as ids of a {@link UrlStore}. It is used for the lists of visited and queued
+ * pages: a page costs 4 bytes in the list, its URL is materialized only when the page is fetched or written.
+ * <p>Lists created for the same crawl share a set of known ids. Every page added to any of them becomes known,
+ * which replaces the linear search of the page in every list.</p>
+ */
+public class UrlIdList implements Iterable<String> {
+    /** Store holding the URLs of the pages. */
+    private final UrlStore store;
+    /** Ids of all pages ever added to a list sharing this set. */
+    private final BitSet known;
+    /** Ids of the pages. */
+    private int[] ids = new int[64];
+    /** The number of pages in the list. */
+    private int size;
+
+    /**
+     * Initializes an empty list.
+     * @param store Store holding the URLs of the pages.
+     * @param known Set of known ids shared by the lists of one crawl.
+     */
+    public UrlIdList(UrlStore store, BitSet known) {
+        this.store = store;
+        this.known = known;
+    }
+
+    /**
+     * Appends the passed page to the list.
+     * @param url Link to the page.
+     */
+    public void add(String url) {
+        add(store.intern(url));
+    }
+
+    /**
+     * Appends the page with the passed id to the list.
+     * @param id Id of the page in the store.
+     */
+    public void add(int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+        known.set(id);
+    }
+
+    /**
+     * Appends all pages of the passed list to this list.
+     * @param other The list to copy.
+     */
+    public void addAll(UrlIdList other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.ids[i]);
+        }
+    }
+
+    /**
+     * Returns the URL of the page at the passed position.
+     * @param index Position in the list.
+     * @return Link to the page.
+     */
+    public String get(int index) {
+        return store.get(getId(index));
+    }
+
+    /**
+     * Returns the id of the page at the passed position.
+     * @param index Position in the list.
+     * @return Id of the page in the store.
+     */
+    public int getId(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return ids[index];
+    }
+
+    /**
+     * Exchanges the pages at the passed positions.
+     * @param first Position in the list.
+     * @param second Position in the list.
+     */
+    public void swap(int first, int second) {
+        int id = getId(first);
+        ids[first] = getId(second);
+        ids[second] = id;
+    }
+
+    /**
+     * Returns the number of pages in the list.
+     * @return The number of pages in the list.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the list is empty.
+     * @return true if the list has no pages.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all pages from the list. The pages stay known.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Iterates over the URLs of the pages, materializing them one by one.
+     * @return Iterator over the URLs.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public String next() {
+                if (index >= size) throw new NoSuchElementException();
+                return get(index++);
+            }
+        };
+    }
+}
@@ -0,0 +1,342 @@
+package com.zmicierk.webcrawler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class stores URLs in a compact form and assigns every distinct URL an int id, so that the lists of visited
+ * and queued pages can hold primitive ids instead of strings.
+ * <p>The scheme and host part of a URL (for example "https://en.wikipedia.org") is kept once per host.
+ * The rest of the URL is front-coded as UTF-8 against the previous URL of the same host: only the length of the
+ * common prefix and the differing suffix are stored. Every RESTART_INTERVAL-th URL of a host is stored in full,
+ * which bounds the number of entries decoded to materialize a URL. The entries of all hosts are appended to large
+ * shared byte blocks, a URL costs a few bytes of entry header, its suffix and 12 bytes of index.</p>
+ * <p>Entry layout (all numbers are unsigned varints): host id, id of the previous entry of the host plus one
+ * (0 for a full entry), length of the common prefix, length of the suffix, suffix bytes.</p>
+ * <p>All methods are thread-safe.</p>
+ */
+public class UrlStore {
+    /** Every RESTART_INTERVAL-th URL of a host is stored without front coding. */
+    private static final int RESTART_INTERVAL = 16;
+    /** log2 of the size of a shared block. */
+    private static final int BLOCK_BITS = 20;
+    /** Size of a shared block (in bytes). */
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    /** Scheme and host part of every host, indexed by host id. */
+    private final List<String> hostPrefixes = new ArrayList<>();
+    /** Host id of every scheme and host part. */
+    private final Map<String, Integer> hostIds = new HashMap<>();
+    /** Id of the last URL of every host, indexed by host id. */
+    private int[] hostLast = new int[16];
+    /** The number of URLs of every host stored since its last full entry, indexed by host id. */
+    private int[] hostRun = new int[16];
+    /** Byte blocks holding the entries. */
+    private final List<byte[]> blocks = new ArrayList<>();
+    /** Write position in the last block. */
+    private int blockPos = BLOCK_SIZE;
+    /** Position of every entry (block index shifted by BLOCK_BITS plus the offset in the block), indexed by id. */
+    private int[] positions = new int[1024];
+    /** Hash code of every URL, indexed by id. */
+    private int[] hashes = new int[1024];
+    /** Open addressing hash table of ids plus one (0 - empty slot). */
+    private int[] table = new int[2048];
+    /** The number of stored URLs. */
+    private int size;
+    /** Ids of the entries decoded to materialize a URL. */
+    private final int[] chain = new int[RESTART_INTERVAL];
+    /** Buffer receiving the decoded part of a URL after its host. */
+    private byte[] scratch = new byte[256];
+    /** Read position of the entry decoder (block index). */
+    private int readBlock;
+    /** Read position of the entry decoder (offset in the block). */
+    private int readPos;
+
+    /**
+     * Returns the id of the passed URL, storing the URL if it is not stored yet.
+     * @param url Link to the page.
+     * @return Id of the URL (ids are assigned consecutively from 0).
+     */
+    public synchronized int intern(String url) {
+        int found = lookup(url);
+        if (found >= 0) return found;
+        String prefix = hostPrefix(url);
+        Integer hostId = hostIds.get(prefix);
+        if (hostId == null) {
+            hostId = hostPrefixes.size();
+            hostPrefixes.add(prefix);
+            hostIds.put(prefix, hostId);
+            if (hostId == hostLast.length) {
+                hostLast = Arrays.copyOf(hostLast, hostId * 2);
+                hostRun = Arrays.copyOf(hostRun, hostId * 2);
+            }
+            hostRun[hostId] = RESTART_INTERVAL;
+        }
+        byte[] path = url.substring(prefix.length()).getBytes(StandardCharsets.UTF_8);
+        int previous = -1;
+        int shared = 0;
+        if (hostRun[hostId] < RESTART_INTERVAL) {
+            previous = hostLast[hostId];
+            int length = decodePath(previous);
+            int limit = Math.min(length, path.length);
+            while (shared < limit && scratch[shared] == path[shared]) {
+                shared++;
+            }
+            hostRun[hostId]++;
+        } else {
+            hostRun[hostId] = 1;
+        }
+        int id = size++;
+        if (id == positions.length) {
+            positions = Arrays.copyOf(positions, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        positions[id] = writeEntry(hostId, previous + 1, shared, path);
+        hashes[id] = hash(url);
+        hostLast[hostId] = id;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        insert(id);
+        return id;
+    }
+
+    /**
+     * Returns the id of the passed URL.
+     * @param url Link to the page.
+     * @return Id of the URL, or -1 if the URL is not stored.
+     */
+    public synchronized int lookup(String url) {
+        String prefix = hostPrefix(url);
+        Integer hostId = hostIds.get(prefix);
+        if (hostId == null) return -1;
+        int h = hash(url);
+        byte[] path = null;
+        int mask = table.length - 1;
+        for (int slot = h & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] != h || hostOf(id) != hostId) continue;
+            if (path == null) path = url.substring(prefix.length()).getBytes(StandardCharsets.UTF_8);
+            int length = decodePath(id);
+            if (length == path.length && equalsScratch(path)) return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the passed URL is stored.
+     * @param url Link to the page.
+     * @return true if the URL is stored.
+     */
+    public boolean contains(String url) {
+        return lookup(url) >= 0;
+    }
+
+    /**
+     * Materializes the URL with the passed id.
+     * @param id Id of the URL.
+     * @return Link to the page.
+     */
+    public synchronized String get(int id) {
+        if (id < 0 || id >= size) throw new IndexOutOfBoundsException("Unknown url id: " + id);
+        int length = decodePath(id);
+        return hostPrefixes.get(hostOf(id)) + new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of stored URLs.
+     * @return The number of stored URLs.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the heap taken by the store.
+     * @return Approximate size of the store (in bytes).
+     */
+    public synchronized long memoryUsage() {
+        long bytes = (long) blocks.size() * BLOCK_SIZE;
+        bytes += 4L * (positions.length + hashes.length + table.length + hostLast.length + hostRun.length);
+        for (String prefix : hostPrefixes) {
+            bytes += 64 + 2L * prefix.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the scheme and host part of the URL: everything before the first '/', '?' or '#' after "://".
+     * A URL without "://" has an empty host part.
+     * @param url Link to the page.
+     * @return Scheme and host part of the URL.
+     */
+    static String hostPrefix(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme < 0) return "";
+        for (int i = scheme + 3; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') return url.substring(0, i);
+        }
+        return url;
+    }
+
+    /**
+     * Hash code of a URL, with the bits of String.hashCode spread over the whole int.
+     * @param url Link to the page.
+     * @return Hash code.
+     */
+    private static int hash(String url) {
+        int h = url.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Places the passed id into the hash table.
+     * @param id Id of a stored URL.
+     */
+    private void insert(int id) {
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    /**
+     * Doubles the hash table and places all ids into it again.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    /**
+     * Appends an entry to the blocks. An entry never crosses a block boundary, an entry longer than a block gets
+     * a block of its own.
+     * @param hostId Host id of the URL.
+     * @param previousPlusOne Id of the previous entry of the host plus one, 0 for a full entry.
+     * @param shared Length of the prefix shared with the previous entry.
+     * @param path UTF-8 bytes of the URL after its host part.
+     * @return Position of the entry.
+     */
+    private int writeEntry(int hostId, int previousPlusOne, int shared, byte[] path) {
+        int suffix = path.length - shared;
+        int length = 20 + suffix;
+        if (blockPos + length > BLOCK_SIZE) {
+            blocks.add(new byte[Math.max(BLOCK_SIZE, length)]);
+            blockPos = 0;
+        }
+        int blockIndex = blocks.size() - 1;
+        byte[] block = blocks.get(blockIndex);
+        int start = blockPos;
+        int pos = writeVarint(block, start, hostId);
+        pos = writeVarint(block, pos, previousPlusOne);
+        pos = writeVarint(block, pos, shared);
+        pos = writeVarint(block, pos, suffix);
+        System.arraycopy(path, shared, block, pos, suffix);
+        blockPos = length > BLOCK_SIZE ? BLOCK_SIZE : pos + suffix;
+        return (blockIndex << BLOCK_BITS) | start;
+    }
+
+    /**
+     * Returns the host id of the entry.
+     * @param id Id of the URL.
+     * @return Host id.
+     */
+    private int hostOf(int id) {
+        seek(id);
+        return readVarint();
+    }
+
+    /**
+     * Decodes the part of the URL after its host into the scratch buffer, starting from the last full entry
+     * of the chain of front-coded entries.
+     * @param id Id of the URL.
+     * @return Length of the decoded bytes.
+     */
+    private int decodePath(int id) {
+        int count = 0;
+        int current = id;
+        while (true) {
+            chain[count++] = current;
+            seek(current);
+            readVarint();
+            int previousPlusOne = readVarint();
+            if (previousPlusOne == 0) break;
+            current = previousPlusOne - 1;
+        }
+        int length = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            seek(chain[i]);
+            readVarint();
+            readVarint();
+            int shared = readVarint();
+            int suffix = readVarint();
+            length = shared + suffix;
+            if (length > scratch.length) {
+                scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+            }
+            System.arraycopy(blocks.get(readBlock), readPos, scratch, shared, suffix);
+        }
+        return length;
+    }
+
+    /**
+     * Compares the passed bytes with the beginning of the scratch buffer.
+     * @param path Bytes to compare.
+     * @return true if the bytes are equal.
+     */
+    private boolean equalsScratch(byte[] path) {
+        for (int i = 0; i < path.length; i++) {
+            if (scratch[i] != path[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the entry decoder to the beginning of the entry.
+     * @param id Id of the URL.
+     */
+    private void seek(int id) {
+        readBlock = positions[id] >>> BLOCK_BITS;
+        readPos = positions[id] & (BLOCK_SIZE - 1);
+    }
+
+    /**
+     * Reads an unsigned varint at the position of the entry decoder.
+     * @return The value read.
+     */
+    private int readVarint() {
+        byte[] block = blocks.get(readBlock);
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = block[readPos++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+            shift += 7;
+        }
+    }
+
+    /**
+     * Writes an unsigned varint (7 bits per byte, the high bit marks a following byte).
+     * @param block The block to write to.
+     * @param pos Position of the first byte.
+     * @param value Non-negative value.
+     * @return Position after the last byte written.
+     */
+    private static int writeVarint(byte[] block, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            block[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -1,5 +1,11 @@
 package com.zmicierk.webcrawler;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The class is the main class of the application. The "main" method of this class is the entry point into the program.
  * The tasks of this class are as follows:
@@ -44,6 +50,20 @@ public class WebCrawler {
     public static String termString;
     /** An array of term strings to determine the number of occurrences per page. */
     public static String[] arOfTerms;
+    /** The path to the term dictionary file (one term per line), null if the terms are passed with -t. */
+    public static String termFile;
+    /** Defines whether the output files hold term id:count pairs of the terms found instead of a count per term. */
+    public static boolean sparse = false;
+    /** The path to the file to which the link graph of the crawl is written, null if it is not written. */
+    public static String graphFileName;
+    /** Ranking of the top file: terms, pagerank or hits. */
+    public static String ranking = "terms";
+    /** Weight of the link authority in the ranking of the top file, from 0 to 1. */
+    public static double rankWeight = 0.5;
+    /** The directory of the archive to which the fetched responses are appended, null if they are not recorded. */
+    public static String recordDir;
+    /** The directory of the archive from which the pages are replayed, null if the pages are fetched live. */
+    public static String replayDir;
     /**
      * Determines whether to display the table heading in output files.
      * true - display the table header
@@ -54,6 +74,49 @@ public class WebCrawler {
      * If true, the search will be case sensitive.
      */
     public static boolean caseSensitive = false;
+    /** The id of this process in a distributed crawl (an index in the shardPeers list). */
+    public static int shardId = 0;
+    /**
+     * Addresses (host:port) of all processes of a distributed crawl, separated by commas.
+     * null if the crawl is performed by this process alone.
+     */
+    public static String shardPeers;
+    /**
+     * Defines the traversal order:
+     * false - strict level order
+     * true - pipelined, the levels overlap
+     */
+    public static boolean pipelined = false;
+    /** The number of pages processed concurrently in the pipelined traversal. */
+    public static int workers = 4;
+    /** Defines whether the pipelined traversal processes the pages in stages connected by bounded queues. */
+    public static boolean staged = false;
+    /** The number of workers of the fetch, extract, match, links and output stages, null - the defaults. */
+    public static int[] stageWorkers = null;
+    /** The maximum number of pages waiting in front of every stage. */
+    public static int stageQueue = 16;
+    /** Defines whether the number of fetches in flight is adapted to the latency and the errors of the hosts. */
+    public static boolean adaptive = false;
+    /** Size of the cache of scripts and other subresources shared by all web clients (in megabytes), 0 - none. */
+    public static int cacheSize = 0;
+    /** Defines whether the final URLs after redirects and the canonical URLs of the pages are followed. */
+    public static boolean canonical = false;
+    /** Link to the sitemap seeding the crawl, "robots" - the sitemaps listed in robots.txt, null - none. */
+    public static String sitemap;
+    /** Sitemap pages modified before this time (in milliseconds) are skipped, Long.MIN_VALUE - none are skipped. */
+    public static long sitemapSince = Long.MIN_VALUE;
+    /** The maximum number of retries of a page after a transient failure. */
+    public static int retries = 2;
+    /** The number of consecutive failures of a host after which its pages are skipped (0 - never skip). */
+    public static int failureThreshold = HostHealth.DEFAULT_FAILURE_THRESHOLD;
+    /** Wall-clock time budget of the crawl (in seconds), 0 - unlimited. */
+    public static long budgetTime = 0;
+    /** Download budget of the crawl (in bytes), 0 - unlimited. */
+    public static long budgetBytes = 0;
+    /** The part of the page in which the terms are searched: whole, body, main or render. */
+    public static String textScope = "whole";
+    /** The engine counting the terms: regex or dfa. */
+    public static String termEngine = "regex";
 
     /**
      * This method is the entry point to the program. Accepts command line arguments.
@@ -68,9 +131,43 @@ public class WebCrawler {
         encodeArgument(args);
         WebCrawlerThread crawlThread=null;
         try {
+            PageArchive replayArchive = null;
+            if (replayDir != null) {
+                replayArchive = PageArchive.openForReplay(replayDir);
+                if (startUrl == null) startUrl = replayArchive.getStartUrl();
+                if (!pipelined && !staged) {
+                    pipelined = true;
+                    workers = Math.max(workers, Runtime.getRuntime().availableProcessors());
+                }
+            }
+            if (adaptive && !pipelined && !staged) pipelined = true;
             crawlThread = new WebCrawlerThread(maxVisited, maxDepth, timeOutJSBefore, timeOutJS,
                     numToPrintInTopFile, timeOut, topFileName, rawFileName, startUrl, termString, arOfTerms, printHeader,
-                    enableJS, caseSensitive);
+                    enableJS, caseSensitive, replayArchive);
+            if (recordDir != null) {
+                crawlThread.setRecordArchive(PageArchive.openForRecording(recordDir, crawlThread.urlStore));
+            }
+            crawlThread.setPipelined(pipelined);
+            crawlThread.setWorkers(workers);
+            crawlThread.setStaged(staged);
+            if (stageWorkers != null) crawlThread.setStageWorkers(stageWorkers);
+            crawlThread.setStageQueue(stageQueue);
+            crawlThread.setAdaptive(adaptive);
+            if (cacheSize != 0) crawlThread.setSharedCache(new SharedCache(cacheSize * 1024L * 1024));
+            crawlThread.setCanonical(canonical);
+            if (sitemapSince != Long.MIN_VALUE && sitemap == null) throw new Exception("-since requires -sitemap");
+            if (sitemap != null) crawlThread.setSitemap(sitemap, sitemapSince);
+            crawlThread.setRetries(retries);
+            crawlThread.setFailureThreshold(failureThreshold);
+            crawlThread.setBudget(budgetTime * 1000, budgetBytes);
+            crawlThread.setTextScope(TextExtractor.parseScope(textScope));
+            crawlThread.setTermEngine(termEngine);
+            crawlThread.setSparse(sparse);
+            if (graphFileName != null) crawlThread.setGraphFile(graphFileName);
+            crawlThread.setRanking(ranking, rankWeight);
+            if (shardPeers != null) {
+                crawlThread.setShardNode(new ShardNode(shardId, shardPeers.split(",")));
+            }
         }
         catch (Exception e) {
             System.out.println(e.getMessage());
@@ -192,6 +289,207 @@ public class WebCrawler {
                         System.exit(-1);
                     }
                     break;
+                case "-tfile":
+                    try {
+                        termFile = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal termFile argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-sparse":
+                    sparse =true;
+                    break;
+                case "-graph":
+                    try {
+                        graphFileName = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal graphFileName argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-rank":
+                    try {
+                        ranking = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal ranking argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-rank-weight":
+                    try {
+                        rankWeight = Double.parseDouble(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal rankWeight argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-record":
+                    try {
+                        recordDir = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal recordDir argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-replay":
+                    try {
+                        replayDir = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal replayDir argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-pipeline":
+                    pipelined =true;
+                    break;
+                case "-stages":
+                    staged =true;
+                    break;
+                case "-stage-workers":
+                    try {
+                        String[] counts = args[++i].split(",");
+                        stageWorkers = new int[counts.length];
+                        for (int j = 0; j < counts.length; j++) {
+                            stageWorkers[j] = Integer.parseInt(counts[j].trim());
+                        }
+                        staged = true;
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal stageWorkers argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-stage-queue":
+                    try {
+                        stageQueue = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal stageQueue argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-sitemap":
+                    try {
+                        sitemap = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal sitemap argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-since":
+                    try {
+                        sitemapSince = SitemapReader.parseDate(args[++i]);
+                        if (sitemapSince == Long.MIN_VALUE) throw new Exception();
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal since argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-canonical":
+                    canonical =true;
+                    break;
+                case "-cache":
+                    try {
+                        cacheSize = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal cacheSize argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-adaptive":
+                    adaptive =true;
+                    break;
+                case "-workers":
+                    try {
+                        workers = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal workers argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-retries":
+                    try {
+                        retries = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal retries argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-breaker":
+                    try {
+                        failureThreshold = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal failureThreshold argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-budget-time":
+                    try {
+                        budgetTime = Long.parseLong(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal budgetTime argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-budget-bytes":
+                    try {
+                        budgetBytes = Long.parseLong(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal budgetBytes argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-engine":
+                    try {
+                        termEngine = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal termEngine argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-text":
+                    try {
+                        textScope = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal textScope argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-shard":
+                    try {
+                        shardId = Integer.parseInt(args[++i]);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal shardId argument");
+                        System.exit(-1);
+                    }
+                    break;
+                case "-peers":
+                    try {
+                        shardPeers = args[++i];
+                    }
+                    catch (Exception e) {
+                        System.out.println("Illegal shardPeers argument");
+                        System.exit(-1);
+                    }
+                    break;
                 case "-help":
                 case "-?":
                     printHelpToStandardOutput();
@@ -202,14 +500,65 @@ public class WebCrawler {
                     System.exit(-1);
             }
         }
-        try {
-            arOfTerms = termString.split(",");
+        if (termFile != null) {
+            if (termString != null) {
+                System.out.println("Only one of -t and -tfile may be specified");
+                System.exit(-1);
+            }
+            try {
+                arOfTerms = readTermFile(termFile);
+                termString = toCsvFields(arOfTerms);
+            }
+            catch (Exception e) {
+                System.out.println("Illegal termFile argument: " + e.getMessage());
+                System.exit(-1);
+            }
+        } else {
+            try {
+                arOfTerms = termString.split(",");
+            }
+            catch (Exception e) {
+                System.out.println("Illegal TermsList argument");
+                System.exit(-1);
+            }
         }
-        catch (Exception e) {
-            System.out.println("Illegal TermsList argument");
-            System.exit(-1);
+
+    }
+
+    /**
+     * Reads the terms of a term dictionary file: one term per line (UTF-8), lines are trimmed, empty lines and
+     * lines starting with # are skipped. Unlike -t, a term may contain commas.
+     * @param fileName The path to the term dictionary file.
+     * @return The terms, in the order of the file.
+     * @throws Exception if the file can't be read or has no terms.
+     */
+    static String[] readTermFile(String fileName) throws Exception {
+        List<String> terms = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String term = line.trim();
+            if (!term.isEmpty() && !term.startsWith("#")) terms.add(term);
         }
+        if (terms.isEmpty()) throw new Exception("no terms in " + fileName);
+        return terms.toArray(new String[0]);
+    }
 
+    /**
+     * Joins the terms into the fields of the table header, CSV-style: a term containing a comma or a quote is
+     * enclosed in quotes, with its quotes doubled, so every term stays one column.
+     * @param terms The terms.
+     * @return Comma-separated header fields of the terms.
+     */
+    static String toCsvFields(String[] terms) {
+        StringBuilder fields = new StringBuilder();
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) fields.append(',');
+            if (terms[i].indexOf(',') >= 0 || terms[i].indexOf('"') >= 0) {
+                fields.append('"').append(terms[i].replace("\"", "\"\"")).append('"');
+            } else {
+                fields.append(terms[i]);
+            }
+        }
+        return fields.toString();
     }
 
     /**
@@ -230,17 +579,61 @@ public class WebCrawler {
         System.out.println(" Mandatory:");
         System.out.println("  -s startUrl \n\tURL from which the process starts its work.(seed)");
         System.out.println("  -t termString \n\tA term string to define the number of occurrences per page. " +
-                "Terms are separated by commas.\n");
+                "Terms are separated by commas.");
+        System.out.println("  -tfile termFile \n\tOr the path to a term dictionary file: one term per line, empty " +
+                "lines and lines starting with # are skipped.\n");
         System.out.println(" Optional:");
         System.out.println("  -d maxDepth \n\tThe maximum number of transitions in depth relative to the initial " +
                 "page.\n\tDefault: 8");
+        System.out.println("  -text textScope \n\tThe part of the page in which the terms are searched: whole -" +
+                " visible text of the whole page, body - visible text of the body, main - visible text of the body" +
+                " without nav and footer elements, render - layout-aware rendering (slow).\n\tDefault: whole");
+        System.out.println("  -sparse \n\tThe rows of the output files hold id:count pairs of the terms found " +
+                "on the page (the id is the position of the term in -t or in the term dictionary file, starting " +
+                "from 0) instead of a count for every term. A page without occurrences has the URL alone.\n\t" +
+                "Default: a count for every term");
+        System.out.println("  -graph graphFileName \n\tThe path to the file to which the link graph of the crawl is " +
+                "written: the line \"nodes N edges M\", the URL of every node (node i on line i + 2), then a line " +
+                "per processed page with its node id and the ids of the pages it links to, separated by spaces. Not " +
+                "available in a distributed crawl.\n\tDefault: the link graph is not written");
+        System.out.println("  -rank ranking \n\tThe ranking of the top file: terms - by the total number of " +
+                "occurrences; pagerank, hits - by a combination of the occurrences and the link authority of the " +
+                "page (PageRank or HITS authority computed over the link graph of the crawl). Not available in a " +
+                "distributed crawl.\n\tDefault: terms");
+        System.out.println("  -rank-weight rankWeight \n\tThe weight of the link authority in the ranking, from 0 " +
+                "to 1: score = (1 - weight) * occurrences / maximum occurrences + weight * authority / maximum " +
+                "authority.\n\tDefault: 0.5");
+        System.out.println("  -record recordDir \n\tThe directory of an archive to which every fetched response " +
+                "(URL, headers, body, depth and parent page) is appended, in WARC-like segment files of at most 128 " +
+                "MB. A crawl into an existing archive adds new segments. Not available in a distributed crawl." +
+                "\n\tDefault: the responses are not recorded");
+        System.out.println("  -replay replayDir \n\tThe directory of an archive recorded with -record. The pages are " +
+                "served from the archive instead of the network (a page missing from the archive is not found), " +
+                "so the crawl can be repeated with other terms or options at disk speed. -s is optional, the start " +
+                "page of the last recorded crawl is used. Without -pipeline or -stages the pipelined traversal is " +
+                "used with at least one worker per core.\n\tDefault: the pages are fetched from the network");
+        System.out.println("  -engine termEngine \n\tThe engine counting the terms: regex - java.util.regex, a " +
+                "backtracking search per term; dfa - a lazily built DFA per term, linear in the length of the page " +
+                "even for pathological terms. Terms using features the dfa engine does not support (anchors, " +
+                "boundaries, lazy or possessive quantifiers, back references, lookaround, ...) are reported and " +
+                "counted with java.util.regex.\n\tDefault: regex");
         System.out.println("  -static \n\tDisable JavaScript\n\tDefault: JavaScript enabled");
         System.out.println("  -noheader \n\tDo not print the table header to files" +
                 "\n\tDefault: table header printed to files");
         System.out.println("  -cs \n\tPerform a case sensitive search.\n\tDefault: Case insensitive");
         System.out.println("  -v maxVisited \n\tThe maximum number of pages to visit.\n\tDefault: 10000");
-        System.out.println("  -to timeOut(in milliseconds) \n\tTime to wait for a response from the server." +
-                "\n\tDefault: 7500");
+        System.out.println("  -budget-time seconds \n\tWall-clock time budget of the crawl. When it is used up no more " +
+                "pages are requested and the top file is written. When less than a fifth is left, the pages expected" +
+                " to be the cheapest are processed first.\n\tDefault: unlimited");
+        System.out.println("  -budget-bytes bytes \n\tThe maximum number of bytes of page content to download, with " +
+                "the same behaviour as -budget-time.\n\tDefault: unlimited");
+        System.out.println("  -to timeOut(in milliseconds) \n\tTime to wait for a response from the server. Once the" +
+                " latency of a host is known, its requests wait for a multiple of its 95th percentile latency," +
+                " but never longer than timeOut. A retry after a timeout waits for timeOut.\n\tDefault: 7500");
+        System.out.println("  -retries retries \n\tThe maximum number of retries of a page after a transient failure" +
+                " (timeout, lost connection, HTTP 429, 502, 503, 504), with exponential backoff.\n\tDefault: 2");
+        System.out.println("  -breaker failureThreshold \n\tThe number of consecutive failures of a host after which" +
+                " its pages are skipped until a cooldown has passed. 0 - never skip.\n\tDefault: 5");
         System.out.println("  -tojsb timeOutJSBefore(in milliseconds) \n\tThe delay which determines the background " +
                 "tasks to wait until all background JavaScript tasks scheduled to start executing" +
                 "before (now + timeOutJSBefore) have finished executing.\n\tDefault: 1000");
@@ -252,6 +645,48 @@ public class WebCrawler {
                 " -nt parameter.\n\tDefault: OutTop.csv in current dir");
         System.out.println("  -f fileName \n\tThe path to the CSV file in which all statistical data will be serialized" +
                 "(without predefined sorting)\n\tDefault: Out.csv in current dir\"");
+        System.out.println("  -pipeline \n\tOverlap the levels: pages of the next level are processed as soon as they" +
+                " are discovered and a worker is free, instead of waiting for the whole current level. The depth and" +
+                " visit limits are kept exactly.\n\tDefault: strict level order");
+        System.out.println("  -workers workers \n\tThe number of pages processed concurrently with -pipeline." +
+                "\n\tDefault: 4");
+        System.out.println("  -stages \n\tPipelined traversal in which the work on a page is split into stages: " +
+                "fetch, extract (visible text), match (terms), links and output, connected by bounded queues. The " +
+                "depths of the queues are printed to the standard error stream every 10 seconds and summarized at " +
+                "the end.\n\tDefault: every page is processed by one thread");
+        System.out.println("  -stage-workers fetch,extract,match,links,output \n\tThe number of workers of every " +
+                "stage, implies -stages.\n\tDefault: -workers fetch workers, one extract, match and links worker " +
+                "per core, one output worker");
+        System.out.println("  -stage-queue capacity \n\tThe maximum number of pages waiting in front of every " +
+                "stage.\n\tDefault: 16");
+        System.out.println("  -sitemap sitemap \n\tSeed the crawl with the pages of a sitemap or sitemap index (gzip " +
+                "compressed or not), given by its URL, or \"robots\" for the sitemaps listed in robots.txt of the " +
+                "host of the start page (or its /sitemap.xml). The pages are queued after the start page at depth 1. " +
+                "Not available in a distributed crawl.\n\tDefault: pages are discovered by links only");
+        System.out.println("  -since date \n\tWith -sitemap, do not crawl the pages whose lastmod is before the date " +
+                "(YYYY-MM-DD or a W3C datetime), they are unchanged since then. Pages without lastmod are crawled." +
+                "\n\tDefault: all pages are crawled");
+        System.out.println("  -canonical \n\tFollow redirects and <link rel=\"canonical\"> of the pages: a page is " +
+                "reported under its canonical URL (or its final URL after redirects), a page with the URL of a page " +
+                "already processed is dropped and its links are not followed, links to the known aliases of a page " +
+                "are not fetched again.\n\tDefault: every requested URL is reported as a page of its own");
+        System.out.println("  -cache cacheSize(in megabytes) \n\tShare a cache of scripts and other subresources " +
+                "between all web clients and pages, bounded by the total size of the content, least recently used " +
+                "entries are evicted. HTTP cache headers are followed, compiled scripts are reused. The use of the " +
+                "cache is printed to the standard error stream at the end.\n\tDefault: every web client keeps its " +
+                "own cache of 40 entries");
+        System.out.println("  -adaptive \n\tAdapt the number of fetches in flight to the hosts (AIMD): it starts at " +
+                "1, grows while the fetches succeed and is halved on HTTP 429 or 503, timeouts, an error rate above " +
+                "20% or a 99th percentile latency twice the lowest seen. It only grows while the crawl uses it. " +
+                "Retry-After pauses the host. -workers (or the fetch workers of -stage-workers) is the upper " +
+                "bound; implies -pipeline without -stages. Changes of " +
+                "the limit are printed to the standard error stream.\n\tDefault: every worker fetches when free");
+        System.out.println("  -peers host:port,host:port,... \n\tRun as one process of a distributed crawl. The list " +
+                "contains the addresses of all processes, every process gets the same list. Each process owns the " +
+                "hosts mapped to it by a consistent hash and listens on the port of its own entry. The raw and top " +
+                "files of process 0 contain the merged results.\n\tDefault: crawl in this process alone");
+        System.out.println("  -shard shardId \n\tThe id of this process in a distributed crawl (an index in the " +
+                "-peers list).\n\tDefault: 0");
         System.out.println("  -? -help \n\tprint this help message.\n");
         System.out.println("EXAMPLE");
         System.out.println("  WebCrawler -a \"https://en.wikipedia.org/wiki/Java_(programming_language)\" -d 4 -v 30" +
@@ -269,6 +704,7 @@ public class WebCrawler {
         System.out.println("   0 Successful completion (no pages to process)");
         System.out.println("   1 Successful completion (maximum depth(-d argument) reached)");
         System.out.println("   2 Successful completion (page visit limit(-v argument) reached)");
+        System.out.println("   3 Successful completion (crawl budget(-budget-time, -budget-bytes argument) used up)");
         System.out.println("  -1 Unsuccessful completion");
     }
 }
\ No newline at end of file
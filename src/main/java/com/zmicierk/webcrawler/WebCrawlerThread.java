@@ -1,11 +1,23 @@
 package com.zmicierk.webcrawler;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import com.gargoylesoftware.htmlunit.*;
+import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.javascript.background.JavaScriptJobManager;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
 
 /**
  * This class is the core of the system. It implements all the crawling logic.
@@ -17,12 +29,16 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
  * this parameter, also outputting these statistics to the standard output stream.
  */
 public class WebCrawlerThread {
+    /** Compact storage of the URLs of all pages met during the crawl, the lists below hold their ids. */
+    public final UrlStore urlStore = new UrlStore();
+    /** Ids of the pages contained in UrlArray, UrlQuaFormed or UrlQuaCur at any time. */
+    private final BitSet urlKnown = new BitSet();
     /** List of visited pages */
-    public ArrayList<String> urlArray = new ArrayList<>();
+    public UrlIdList urlArray = new UrlIdList(urlStore, urlKnown);
     /** List of pages to visit in next parse cycle */
-    public ArrayList<String> urlQuaFormed = new ArrayList<>();
+    public UrlIdList urlQuaFormed = new UrlIdList(urlStore, urlKnown);
     /** List of pages to visit in current parse cycle */
-    public ArrayList<String> urlQuaCur = new ArrayList<>();
+    public UrlIdList urlQuaCur = new UrlIdList(urlStore, urlKnown);
     /** The number of pages visited at the moment. */
     public int visited;
     /** The maximum number of pages to visit. */
@@ -71,6 +87,20 @@ public class WebCrawlerThread {
      * 0x02 (Pattern.CASE_INSENSITIVE) - Case insensitive
      */
     private final int caseSensitive;
+    /** Compiled terms, in the order of arOfTerms. */
+    private final Pattern[] termPatterns;
+    /** Linear-time term engine, null if every term is counted with its java.util.regex pattern. */
+    private TermEngine termEngine;
+    /**
+     * Defines the form of the rows of the output files:
+     * false - dense, a count for every term
+     * true - sparse, term id:count pairs of the terms found on the page
+     */
+    private boolean sparse;
+    /** Enables/disables JavaScript support. If true JS enabled, else disabled. */
+    private final boolean enableJS;
+    /** Time to wait for a response from the server. */
+    private final int timeOut;
     /**
      * A class object which Prints formatted representations of objects to a text-output stream.
      * Used to output lines to the file specified in the fileName parameter.
@@ -81,9 +111,81 @@ public class WebCrawlerThread {
      *  0 Successful completion (no pages to process)
      *  1 Successful completion (maximum depth(-d argument) reached)
      *  2 Successful completion (page visit limit(-v argument) reached)
+     *  3 Successful completion (crawl budget(-budget-time, -budget-bytes arguments) used up)
      * -1 Unsuccessful completion
      */
     private int exitStatus = -1;
+    /**
+     * Connection to the other crawler processes of a distributed crawl.
+     * null if the crawl is performed by this process alone.
+     */
+    private ShardNode shardNode;
+    /**
+     * Defines the traversal order:
+     * false - strict level order, the next level starts when all pages of the current level are processed
+     * true - pipelined, pages of the next level start as soon as they are discovered and a worker is free
+     */
+    private boolean pipelined;
+    /** The number of pages processed concurrently in the pipelined traversal. */
+    private int workers = 4;
+    /** Names of the stages of the staged traversal, in the order the pages pass them. */
+    private static final String[] STAGE_NAMES = {"fetch", "extract", "match", "links", "output"};
+    /** The number of windows of every fetch worker, the pages loaded by a worker and not yet through the links stage. */
+    private static final int WINDOWS_PER_FETCHER = 4;
+    /**
+     * Defines whether the pipelined traversal processes every page in stages (fetch, extract, match, links, output)
+     * connected by bounded queues, each with its own workers.
+     */
+    private boolean staged;
+    /** The number of workers of every stage, in the order of STAGE_NAMES; null - the defaults. */
+    private int[] stageWorkers;
+    /** The maximum number of pages waiting in front of every stage. */
+    private int stageQueue = 16;
+    /** Latency, timeouts, failures and circuit breaker of every host. */
+    private HostHealth hostHealth;
+    /** The maximum number of retries of a page after a transient failure. */
+    private int retries = 2;
+    /** Wall-clock time budget of the crawl (in milliseconds), 0 - unlimited. */
+    private long timeBudget;
+    /** Download budget of the crawl (in bytes), 0 - unlimited. */
+    private long byteBudget;
+    /** Time and download limits of the crawl, schedules the cheapest pages when the budget runs low. */
+    private CrawlBudget budget;
+    /** Link graph of the crawl, null if it is not recorded. */
+    private LinkGraph linkGraph;
+    /** The path to the file to which the link graph is written, null if it is not written. */
+    private String graphFileName;
+    /**
+     * Defines the ranking of the top file:
+     * terms - by the total number of occurrences of the terms
+     * pagerank - by a combination of the occurrences and the PageRank of the page
+     * hits - by a combination of the occurrences and the HITS authority of the page
+     */
+    private String ranking = "terms";
+    /** Weight of the link authority in the ranking of the top file, from 0 (occurrences only) to 1 (links only). */
+    private double rankWeight = 0.5;
+    /** Link authority of every page, indexed by url id, null if the top file is ranked by the occurrences alone. */
+    private double[] authority;
+    /** Archive to which the fetched responses are appended, null if they are not recorded. */
+    private PageArchive recordArchive;
+    /** Archive from which the responses are served instead of the network, null if the pages are fetched live. */
+    private final PageArchive replayArchive;
+    /** Defines whether the number of fetches in flight is adapted to the latency and the errors of the hosts. */
+    private boolean adaptive;
+    /** Adaptive limit of the fetches in flight, null if every worker fetches whenever it is free. */
+    private FetchConcurrency concurrency;
+    /** Cache of scripts and other subresources shared by all web clients, null if every client has its own. */
+    private SharedCache sharedCache;
+    /** Redirect and canonical aliases of the pages, null if every requested URL is a page of its own. */
+    private UrlAliases aliases;
+    /** Link to the sitemap seeding the crawl, "robots" - the sitemaps listed in robots.txt, null - none. */
+    private String sitemap;
+    /** Sitemap pages modified before this time (in milliseconds) are skipped, Long.MIN_VALUE - none are skipped. */
+    private long sitemapSince = Long.MIN_VALUE;
+    /** The part of the page the text for the term search is taken from. */
+    private TextExtractor.Scope textScope = TextExtractor.Scope.WHOLE;
+    /** Extracts the text of the pages processed by the strict level order traversal. */
+    private TextExtractor textExtractor = new TextExtractor(textScope);
 
     /**
      * It is used to initialize class fields in accordance with the specified arguments during the initialization
@@ -122,6 +224,35 @@ public class WebCrawlerThread {
     public WebCrawlerThread(int maxVisited, int maxDepth, int timeOutJSBefore, int timeOutJS, int numToPrintInTopFile,
                             int timeOut, String topFileName, String rawFileName, String startUrl, String termString,
                             String[] arOfTerms, boolean printHeader, boolean enableJS, boolean caseSensitive) throws Exception {
+        this(maxVisited, maxDepth, timeOutJSBefore, timeOutJS, numToPrintInTopFile, timeOut, topFileName, rawFileName,
+                startUrl, termString, arOfTerms, printHeader, enableJS, caseSensitive, null);
+    }
+
+    /**
+     * Initializes the crawler in the same way as the constructor above, with the pages served from an archive
+     * recorded by an earlier crawl instead of the network. The start page must be in the archive.
+     * @param maxVisited The maximum number of pages to visit.
+     * @param maxDepth The maximum number of transitions in depth relative to the initial page.
+     * @param timeOutJSBefore The delay which determines the background tasks to wait for (in milliseconds)
+     * @param timeOutJS The maximum amount of time to wait for background JavaScript tasks (in milliseconds)
+     * @param numToPrintInTopFile The number of records in the file specified in the topFileName parameter.
+     * @param timeOut Time to wait for a response from the server.
+     * @param topFileName The path to the CSV file in which top by total hits statistical data will be serialized.
+     * @param rawFileName The path to the CSV file in which all statistical data will be serialized.
+     * @param startUrl URL from which the process starts its work.(seed)
+     * @param termString A term string to define the number of occurrences per page.
+     * @param arOfTerms An array of term strings to determine the number of occurrences per page.
+     * @param printHeader Determines whether to display the table heading in output files.
+     * @param enableJS Enables/disables JavaScript support.
+     * @param caseSensitive If true, the search will be case sensitive.
+     * @param replayArchive Archive serving the pages, null - the pages are fetched from the network.
+     * @throws Exception if the arguments passed are invalid.
+     */
+    public WebCrawlerThread(int maxVisited, int maxDepth, int timeOutJSBefore, int timeOutJS, int numToPrintInTopFile,
+                            int timeOut, String topFileName, String rawFileName, String startUrl, String termString,
+                            String[] arOfTerms, boolean printHeader, boolean enableJS, boolean caseSensitive,
+                            PageArchive replayArchive) throws Exception {
+        this.replayArchive = replayArchive;
         if (maxDepth < 0) throw new Exception("maxDepth must be positive");
         if (maxVisited < 1) throw new Exception("maxVisited must be bigger than 0");
         if (maxVisited < numToPrintInTopFile) throw new Exception("maxVisited can't be lower than NumToPrintInTopFile");
@@ -130,14 +261,11 @@ public class WebCrawlerThread {
         if (timeOut < 0) throw new Exception("timeOut must be positive");
         checkFilePerm(rawFileName);
         checkFilePerm(topFileName);
-        webClient.getOptions().setJavaScriptEnabled(enableJS);
-        webClient.getOptions().setTimeout(timeOut);
-        webClient.getOptions().setUseInsecureSSL(true);
-        webClient.getOptions().setThrowExceptionOnScriptError(false);
-        webClient.setAjaxController(new NicelyResynchronizingAjaxController());
-        webClient.getOptions().setCssEnabled(false);
-        webClient.getOptions().setDownloadImages(false);
-        webClient.getOptions().setGeolocationEnabled(false);
+        this.enableJS = enableJS;
+        this.timeOut = timeOut;
+        configureClient(webClient);
+        hostHealth = new HostHealth(timeOut, HostHealth.DEFAULT_FAILURE_THRESHOLD);
+        budget = new CrawlBudget(0, 0, hostHealth);
         try {
             webClient.getPage(startUrl);
         }
@@ -149,6 +277,15 @@ public class WebCrawlerThread {
         } else {
             this.caseSensitive = Pattern.CASE_INSENSITIVE;
         }
+        termPatterns = new Pattern[arOfTerms.length];
+        for (int i = 0; i < arOfTerms.length; i++) {
+            try {
+                termPatterns[i] = Pattern.compile(arOfTerms[i], this.caseSensitive);
+            }
+            catch (Exception e) {
+                throw new Exception("Illegal term: " + arOfTerms[i]);
+            }
+        }
         this.maxVisited = maxVisited;
         this.maxDepth = maxDepth;
         this.timeOutJSBefore = timeOutJSBefore;
@@ -162,23 +299,401 @@ public class WebCrawlerThread {
         this.printHeader = printHeader;
     }
 
+    /**
+     * Makes this crawler one shard of a distributed crawl. The crawler processes only the pages owned by the shard,
+     * forwards other links to their owners and synchronizes the levels and the page visit limit with the other
+     * shards. Shard 0 collects the raw statistics of all shards and produces the merged top file.
+     * @param shardNode Connection to the other crawler processes.
+     */
+    public void setShardNode(ShardNode shardNode) {
+        this.shardNode = shardNode;
+    }
+
+    /**
+     * Selects the traversal order. In the pipelined traversal every page is tagged with its depth and the pages of
+     * the next level are processed as soon as they are discovered and a worker is free, so a slow page no longer
+     * holds up the whole level. maxDepth, maxVisited and the uniqueness of pages are enforced exactly in both orders.
+     * A distributed crawl always uses the strict level order.
+     * @param pipelined true - pipelined traversal, false - strict level order.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Sets the number of pages processed concurrently in the pipelined traversal.
+     * @param workers The number of worker threads, each of them uses its own web client.
+     * @throws Exception if the number of workers is not positive.
+     */
+    public void setWorkers(int workers) throws Exception {
+        if (workers < 1) throw new Exception("workers must be bigger than 0");
+        this.workers = workers;
+    }
+
+    /**
+     * Selects the staged traversal: the pipelined traversal in which the work on a page is split into stages
+     * (fetch, extract, match, links, output) connected by bounded queues, so the network and the CPU are busy at the
+     * same time. A full queue holds up the stage in front of it.
+     * @param staged true - staged traversal.
+     */
+    public void setStaged(boolean staged) {
+        this.staged = staged;
+    }
+
+    /**
+     * Sets the number of workers of every stage of the staged traversal. By default the fetch stage has as many
+     * workers as the pipelined traversal (-workers), the extract, match and links stages one per core and the output
+     * stage one.
+     * @param stageWorkers The number of workers of the fetch, extract, match, links and output stage.
+     * @throws Exception if the number of values is not 5 or a value is not positive.
+     */
+    public void setStageWorkers(int[] stageWorkers) throws Exception {
+        if (stageWorkers.length != STAGE_NAMES.length) {
+            throw new Exception("stage workers must be given for " + String.join(",", STAGE_NAMES));
+        }
+        for (int count : stageWorkers) {
+            if (count < 1) throw new Exception("stage workers must be bigger than 0");
+        }
+        this.stageWorkers = stageWorkers.clone();
+    }
+
+    /**
+     * Sets the maximum number of pages waiting in front of every stage of the staged traversal.
+     * @param stageQueue Capacity of the queue of every stage.
+     * @throws Exception if the capacity is not positive.
+     */
+    public void setStageQueue(int stageQueue) throws Exception {
+        if (stageQueue < 1) throw new Exception("stage queue must be bigger than 0");
+        this.stageQueue = stageQueue;
+    }
+
+    /**
+     * Sets the maximum number of retries of a page after a transient failure (timeout, lost connection, 429, 502,
+     * 503, 504). Retries are delayed with an exponential backoff, honoring the Retry-After header.
+     * @param retries The maximum number of retries, 0 disables retries.
+     * @throws Exception if the number of retries is negative.
+     */
+    public void setRetries(int retries) throws Exception {
+        if (retries < 0) throw new Exception("retries must be positive");
+        this.retries = retries;
+    }
+
+    /**
+     * Sets the number of consecutive failures of a host after which its pages are skipped without a request
+     * until the cooldown of the host has passed.
+     * @param failureThreshold The number of consecutive failures, 0 disables the circuit breaker.
+     * @throws Exception if the number of failures is negative.
+     */
+    public void setFailureThreshold(int failureThreshold) throws Exception {
+        if (failureThreshold < 0) throw new Exception("failureThreshold must be positive");
+        hostHealth = new HostHealth(timeOut, failureThreshold);
+        budget = new CrawlBudget(timeBudget, byteBudget, hostHealth);
+    }
+
+    /**
+     * Limits the crawl by wall-clock time and downloaded bytes. When the budget is used up, no more pages are
+     * requested, the crawl ends with exit status 3 and the top file is written as usual. When less than a fifth
+     * of the budget is left, the pages which are expected to be the cheapest are processed first.
+     * @param timeBudget Wall-clock time budget (in milliseconds), counted from the start of the crawl, 0 - unlimited.
+     * @param byteBudget Download budget (in bytes), 0 - unlimited.
+     * @throws Exception if a budget is negative.
+     */
+    public void setBudget(long timeBudget, long byteBudget) throws Exception {
+        if (timeBudget < 0) throw new Exception("budget time must be positive");
+        if (byteBudget < 0) throw new Exception("budget bytes must be positive");
+        this.timeBudget = timeBudget;
+        this.byteBudget = byteBudget;
+        budget = new CrawlBudget(timeBudget, byteBudget, hostHealth);
+    }
+
+    /**
+     * Selects the part of the page in which the terms are searched.
+     * @param textScope WHOLE - the whole document, BODY - the body, MAIN - the body without nav and footer elements,
+     * RENDER - the slow layout-aware HtmlPage.asText.
+     */
+    public void setTextScope(TextExtractor.Scope textScope) {
+        this.textScope = textScope;
+        this.textExtractor = new TextExtractor(textScope);
+    }
+
+    /**
+     * Records the link graph of the crawl and writes it to the passed file after the crawl.
+     * @param graphFileName The path to the graph file.
+     * @throws Exception if the file can't be written.
+     */
+    public void setGraphFile(String graphFileName) throws Exception {
+        checkFilePerm(graphFileName);
+        this.graphFileName = graphFileName;
+        if (linkGraph == null) linkGraph = new LinkGraph();
+    }
+
+    /**
+     * Selects the ranking of the top file. Ranking by links records the link graph of the crawl; the score of a
+     * page is (1 - weight) * occurrences / maximum occurrences + weight * authority / maximum authority.
+     * @param ranking terms, pagerank or hits.
+     * @param rankWeight Weight of the link authority, from 0 to 1.
+     * @throws Exception if the ranking is unknown or the weight is out of range.
+     */
+    public void setRanking(String ranking, double rankWeight) throws Exception {
+        if (!ranking.equals("terms") && !ranking.equals("pagerank") && !ranking.equals("hits")) {
+            throw new Exception("Unknown ranking: " + ranking);
+        }
+        if (rankWeight < 0 || rankWeight > 1) throw new Exception("rankWeight must be between 0 and 1");
+        this.ranking = ranking;
+        this.rankWeight = rankWeight;
+        if (!ranking.equals("terms") && linkGraph == null) linkGraph = new LinkGraph();
+    }
+
+    /**
+     * Appends every response fetched during the crawl to the passed archive. The start page, loaded by the
+     * constructor, is dropped from the cache of the client, so that it is fetched and recorded again.
+     * @param recordArchive Archive opened for recording.
+     * @throws Exception if the pages are replayed from an archive.
+     */
+    public void setRecordArchive(PageArchive recordArchive) throws Exception {
+        if (replayArchive != null) throw new Exception("Replayed pages can't be recorded");
+        this.recordArchive = recordArchive;
+        webClient.setWebConnection(recordArchive.recordingConnection(webClient.getWebConnection()));
+        webClient.getCache().clear();
+    }
+
+    /**
+     * Adapts the number of fetches in flight to the behaviour of the hosts: the limit starts at 1, grows while the
+     * fetches succeed and is halved on 429 and 503 answers, timeouts, a high error rate or a rising tail latency
+     * (see {@link FetchConcurrency}). The number of workers which can fetch at once (-workers in the pipelined
+     * traversal, the workers of the fetch stage in the staged traversal) is the highest limit.
+     * @param adaptive true - adaptive limit, false - every worker fetches whenever it is free.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Makes all web clients of the crawl use the passed cache of scripts and other subresources instead of a cache
+     * of their own, so a script loaded and compiled for one page is reused by the pages of all clients.
+     * @param sharedCache Cache shared by the clients.
+     */
+    public void setSharedCache(SharedCache sharedCache) {
+        this.sharedCache = sharedCache;
+        webClient.setCache(sharedCache);
+    }
+
+    /**
+     * Makes the crawler follow the final URL after redirects and the canonical URL declared by the pages
+     * (<code>&lt;link rel="canonical"&gt;</code>). A page is reported under its canonical URL (or its final URL),
+     * a page with the URL of a page already processed is dropped as a duplicate, and the links to the known aliases
+     * of a page are replaced by its URL, so they are never fetched again (see {@link UrlAliases}).
+     * @param canonical true - follow redirects and canonical URLs, false - every requested URL is a page of its own.
+     */
+    public void setCanonical(boolean canonical) {
+        aliases = canonical ? new UrlAliases(urlStore) : null;
+    }
+
+    /**
+     * Seeds the crawl with the pages listed in sitemaps (see {@link SitemapReader}). The pages are queued after the
+     * start page as if it linked to them (at depth 1), so the depth and visit limits apply to them.
+     * @param sitemap Link to a sitemap or sitemap index, "robots" - the sitemaps listed in robots.txt of the host of
+     * the start page (or its /sitemap.xml).
+     * @param since Pages whose lastmod is before this time (in milliseconds) are not crawled, Long.MIN_VALUE - all
+     * pages are crawled.
+     */
+    public void setSitemap(String sitemap, long since) {
+        this.sitemap = sitemap;
+        this.sitemapSince = since;
+    }
+
+    /**
+     * Selects the form of the rows of the output files.
+     * @param sparse If true, a row has the term id:count pairs of the terms found on the page
+     * (the id is the position of the term in the term list), else a count for every term.
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Selects the engine counting the terms.
+     * @param engine regex - java.util.regex, one backtracking search per term; dfa - {@link TermEngine}, a lazily
+     * built DFA per term with linear-time counting (terms using unsupported features are still counted with
+     * java.util.regex, they are reported to the standard error stream).
+     * @throws Exception if the engine is unknown.
+     */
+    public void setTermEngine(String engine) throws Exception {
+        switch (engine.trim().toLowerCase(Locale.ROOT)) {
+            case "regex":
+                termEngine = null;
+                break;
+            case "dfa":
+                termEngine = new TermEngine(arOfTerms, caseSensitive == Pattern.CANON_EQ);
+                for (String fallback : termEngine.getFallbacks()) {
+                    System.err.println("Term " + fallback + ", counted with java.util.regex");
+                }
+                break;
+            default:
+                throw new Exception("Unknown term engine: " + engine);
+        }
+    }
+
     /**
      * Start WebCrawler process according to set class fields.
      * @return exitStatus
      *  0 Successful completion (no pages to process)
      *  1 Successful completion (maximum depth(-d argument) reached)
      *  2 Successful completion (page visit limit(-v argument) reached)
+     *  3 Successful completion (crawl budget(-budget-time, -budget-bytes arguments) used up)
      * -1 Unsuccessful completion
      * @throws Exception if something went wrong
      */
     public int start() throws Exception {
+        if (shardNode != null && linkGraph != null) {
+            throw new Exception("The link graph can't be recorded in a distributed crawl");
+        }
+        if (shardNode != null && (recordArchive != null || replayArchive != null)) {
+            throw new Exception("The page archive can't be used in a distributed crawl");
+        }
+        if (shardNode != null && sitemap != null) {
+            throw new Exception("Sitemaps can't be used in a distributed crawl");
+        }
+        if (recordArchive != null) recordArchive.noteStart(startUrl);
+        if (adaptive) {
+            int fetchers = stageWorkers != null ? stageWorkers[0] : workers;
+            concurrency = new FetchConcurrency(staged ? fetchers : pipelined ? workers : 1);
+        }
         prepareCSV(rawFileName);
         openRawCSV();
-        urlArray.add(startUrl);
-        countMatch(startUrl);
-        parse();
+        budget.start();
+        if (shardNode != null) {
+            return startDistributed();
+        }
+        if (staged) {
+            parseStaged();
+        } else if (pipelined) {
+            parsePipelined();
+        } else {
+            urlArray.add(startUrl);
+            seedSitemaps(this::addToFormed, url -> urlKnown.set(urlStore.intern(url)));
+            countMatch(startUrl);
+            parse();
+        }
         writerRaw.close();
+        if (recordArchive != null) {
+            recordArchive.close();
+            System.err.println("Archive: " + recordArchive.getRecordCount() + " responses recorded");
+        }
+        rankLinks();
         getTopCSV();
+        printHostSummary();
+        if (concurrency != null) System.err.println(concurrency.summary());
+        if (sharedCache != null) System.err.println(sharedCache.summary());
+        if (aliases != null) System.err.println(aliases.summary());
+        return exitStatus;
+    }
+
+    /**
+     * Writes the recorded link graph to the graph file and computes the link authority of the pages
+     * for the ranking of the top file.
+     * @throws Exception if having problems grabbing the graph file
+     */
+    void rankLinks() throws Exception {
+        if (linkGraph == null) return;
+        if (graphFileName != null) {
+            PrintWriter writer = new PrintWriter(graphFileName, "UTF-8");
+            linkGraph.write(writer, urlStore);
+            writer.close();
+        }
+        if (ranking.equals("terms")) return;
+        authority = ranking.equals("pagerank") ? linkGraph.pageRank(urlStore.size()) : linkGraph.hits(urlStore.size());
+        System.err.println("Link graph: " + linkGraph.getPageCount() + " pages, " + urlStore.size() + " nodes, "
+                + linkGraph.getEdgeCount() + " links, " + ranking + " in " + linkGraph.getIterations() + " iterations");
+    }
+
+    /**
+     * Reads the sitemaps, if they are used, and passes their pages on in the single form of the links.
+     * The counts are printed to the standard error stream.
+     * @param seed Receives the pages to crawl.
+     * @param skip Receives the pages unchanged since the date.
+     * @throws Exception if the link to the start page is invalid.
+     */
+    private void seedSitemaps(Consumer<String> seed, Consumer<String> skip) throws Exception {
+        if (sitemap == null) return;
+        String base = normalizePageUrl(startUrl);
+        SitemapReader reader = new SitemapReader(webClient, sitemapSince);
+        Consumer<String> seedLink = loc -> {
+            String link = normalizeLink(loc, base);
+            if (link != null) seed.accept(link);
+        };
+        Consumer<String> skipLink = loc -> {
+            String link = normalizeLink(loc, base);
+            if (link != null) skip.accept(link);
+        };
+        if (sitemap.equals("robots")) {
+            reader.readRobots(startUrl, seedLink, skipLink);
+        } else {
+            reader.read(sitemap, seedLink, skipLink);
+        }
+        System.err.println(reader.summary());
+    }
+
+    /**
+     * Queues the pages of the sitemaps at depth 1 and excludes the unchanged ones from the traversal.
+     * @param frontier The frontier of the traversal.
+     * @throws Exception if the link to the start page is invalid.
+     */
+    private void seedFrontier(CrawlFrontier frontier) throws Exception {
+        seedSitemaps(link -> {
+            String target = resolveLink(link);
+            if (target != null) frontier.offer(target, 1);
+        }, frontier::exclude);
+    }
+
+    /**
+     * Records the links of a processed page in the link graph and the origins of the pages in the archive,
+     * if they are recorded. The targets are brought to the output form of the pages (and to the page they lead to,
+     * when canonical URLs are followed), so that a link and the page it points to are one node of the graph.
+     * @param pageUrl Link to the page as it was queued.
+     * @param url Link to the page in the output form.
+     * @param links Links of the page.
+     */
+    void recordLinks(String pageUrl, String url, List<String> links) {
+        if (recordArchive != null) recordArchive.noteLinks(pageUrl, links);
+        if (linkGraph == null) return;
+        int[] targets = new int[links.size()];
+        for (int i = 0; i < targets.length; i++) {
+            String target = normalizePageUrl(links.get(i));
+            targets[i] = urlStore.intern(aliases == null ? target : aliases.resolve(target));
+        }
+        linkGraph.addPage(urlStore.intern(url), targets);
+    }
+
+    /**
+     * Start this crawler as one shard of a distributed crawl. The start page is processed by the shard which owns it.
+     * After the crawl the raw statistics of all shards are merged into the raw file of shard 0,
+     * which then produces the top file.
+     * @return exitStatus (the same on every shard)
+     * @throws Exception if something went wrong
+     */
+    int startDistributed() throws Exception {
+        try {
+            shardNode.connect();
+            if (shardNode.owns(startUrl)) {
+                urlArray.add(startUrl);
+                countMatch(startUrl);
+            }
+            parseDistributed();
+            writerRaw.close();
+            if (shardNode.getShardId() == 0) {
+                openRawCSV();
+                shardNode.receiveRows(writerRaw);
+                writerRaw.close();
+            } else {
+                shardNode.sendRows(rawFileName, printHeader);
+            }
+            getTopCSV();
+            printHostSummary();
+        }
+        finally {
+            shardNode.close();
+        }
         return exitStatus;
     }
 
@@ -187,6 +702,7 @@ public class WebCrawlerThread {
      * After traversing all links at the current level (UrlQuaCur is empty), it goes to the next level and
      * transfers UrlQuaFormed (List of pages to visit in next parse cycle) to UrlQuaCur and then clears UrlQuaFormed.
      * In the course of work, depth control is performed, adding the processed page to UrlArray (List of visited pages).
+     * When the crawl budget runs low, the cheapest of the next pages of the level is processed first.
      */
     void parse() {
         int curDepth = 1;
@@ -194,12 +710,21 @@ public class WebCrawlerThread {
             urlQuaCur.clear();
             urlQuaCur.addAll(urlQuaFormed);
             urlQuaFormed.clear();
-            for (String urlProcessed : urlQuaCur) {
+            for (int i = 0; i < urlQuaCur.size(); i++) {
                 writerRaw.flush();
                 if (visited >= maxVisited) {
                     exitStatus = 2;
                     return;
                 }
+                if (budget.isExhausted()) {
+                    exitStatus = 3;
+                    return;
+                }
+                if (budget.isLow()) {
+                    int from = i;
+                    urlQuaCur.swap(i, i + budget.selectCheapest(k -> urlQuaCur.get(from + k), urlQuaCur.size() - i));
+                }
+                String urlProcessed = urlQuaCur.get(i);
                 urlArray.add(urlProcessed);
                 countMatch(urlProcessed);
             }
@@ -212,6 +737,420 @@ public class WebCrawlerThread {
         }
     }
 
+    /**
+     * Pipelined traversal. The start page and all discovered links are placed into a {@link CrawlFrontier} together
+     * with their depth, and several workers take pages from it concurrently, each with its own web client.
+     * The traversal ends when the frontier has no pages left and no page is being processed,
+     * or when maxVisited pages have been visited.
+     * @throws Exception if a worker failed.
+     */
+    void parsePipelined() throws Exception {
+        CrawlFrontier frontier = new CrawlFrontier(maxDepth, maxVisited, urlStore);
+        frontier.setBudget(budget);
+        frontier.offer(startUrl, 0);
+        seedFrontier(frontier);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                results.add(executor.submit(() -> {
+                    crawlPipelined(frontier);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            frontier.stop();
+            executor.shutdownNow();
+        }
+        finishFrontier(frontier);
+    }
+
+    /**
+     * Sets the number of visited pages and the exit status after a traversal driven by a frontier.
+     * @param frontier The frontier of the finished traversal.
+     */
+    private void finishFrontier(CrawlFrontier frontier) {
+        visited = frontier.getVisited();
+        if (visited >= maxVisited) {
+            exitStatus = 2;
+        } else if (budget.isExhausted()) {
+            exitStatus = 3;
+        } else if (frontier.isDepthLimitReached()) {
+            exitStatus = 1;
+        } else {
+            exitStatus = 0;
+        }
+    }
+
+    /**
+     * The loop of one worker of the pipelined traversal: takes pages from the frontier until the traversal is
+     * finished, processes them and queues their links one level deeper.
+     * @param frontier The queue of pages shared by all workers.
+     * @throws InterruptedException if the worker was interrupted.
+     */
+    private void crawlPipelined(CrawlFrontier frontier) throws InterruptedException {
+        WebClient client = new WebClient(BrowserVersion.CHROME);
+        TextExtractor extractor = new TextExtractor(textScope);
+        TermEngine engine = termEngine == null ? null : termEngine.copy();
+        try {
+            configureClient(client);
+            CrawlFrontier.Entry entry;
+            while ((entry = frontier.take()) != null) {
+                if (budget.isExhausted()) {
+                    frontier.complete(false);
+                    frontier.stop();
+                    break;
+                }
+                boolean fetched = false;
+                try {
+                    HtmlPage page = fetchPage(client, entry.url);
+                    String url = page == null ? null : pageUrlOf(page, entry.url);
+                    if (url != null) {
+                        fetched = true;
+                        synchronized (urlArray) {
+                            urlArray.add(entry.id);
+                        }
+                        TermCounts matches = countTerms(engine, extractor.extract(page));
+                        List<String> links = extractLinks(page, url);
+                        recordLinks(entry.url, url, links);
+                        for (String curHref : links) {
+                            String target = resolveLink(curHref);
+                            if (target != null) frontier.offer(target, entry.depth + 1);
+                        }
+                        printToCSV(url, matches);
+                    }
+                }
+                finally {
+                    frontier.complete(fetched);
+                }
+            }
+        }
+        finally {
+            closeClient(client);
+        }
+    }
+
+    /**
+     * Staged traversal: the order of the pipelined traversal, with the work on every page split into stages.
+     * The calling thread takes the pages from the frontier and puts them into the queue of the fetch stage; the fetch
+     * workers load them, each into a window of its own web client, the extract workers collect the visible text, the
+     * match workers count the terms, the links workers queue the links of the page one level deeper and release the
+     * window, the output workers write the statistics. Every queue is bounded, and a fetch worker has a fixed number
+     * of windows, so the number of pages held in memory is bounded as well. A page is completed in the frontier after
+     * its links are queued. The depths of the queues are printed to the standard error stream every 10 seconds and
+     * summarized at the end, the stage in front of which the queue stays full is the bottleneck.
+     * @throws Exception if a stage failed.
+     */
+    void parseStaged() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] counts = stageWorkers != null ? stageWorkers : new int[] {workers, cores, cores, cores, 1};
+        CrawlFrontier frontier = new CrawlFrontier(maxDepth, maxVisited, urlStore);
+        frontier.setBudget(budget);
+        frontier.offer(startUrl, 0);
+        seedFrontier(frontier);
+        PageStage<StagedPage> output = new PageStage<>(STAGE_NAMES[4], counts[4], stageQueue,
+                () -> page -> printToCSV(page.url, page.matches), page -> abandon(frontier, page));
+        PageStage<StagedPage> links = new PageStage<>(STAGE_NAMES[3], counts[3], stageQueue, () -> page -> {
+            List<String> pageLinks = extractLinks(page.page, page.url);
+            recordLinks(page.entry.url, page.url, pageLinks);
+            for (String curHref : pageLinks) {
+                String target = resolveLink(curHref);
+                if (target != null) frontier.offer(target, page.entry.depth + 1);
+            }
+            page.release();
+            page.completed = true;
+            frontier.complete(true);
+            output.put(page);
+        }, page -> abandon(frontier, page));
+        PageStage<StagedPage> match = new PageStage<>(STAGE_NAMES[2], counts[2], stageQueue, () -> {
+            TermEngine engine = termEngine == null ? null : termEngine.copy();
+            return page -> {
+                page.matches = countTerms(engine, page.text);
+                page.text = null;
+                links.put(page);
+            };
+        }, page -> abandon(frontier, page));
+        PageStage<StagedPage> extract = new PageStage<>(STAGE_NAMES[1], counts[1], stageQueue, () -> {
+            TextExtractor extractor = new TextExtractor(textScope);
+            return page -> {
+                page.text = extractor.extract(page.page).toString();
+                match.put(page);
+            };
+        }, page -> abandon(frontier, page));
+        PageStage<CrawlFrontier.Entry> fetch = new PageStage<>(STAGE_NAMES[0], counts[0], stageQueue,
+                () -> new FetchWorker(frontier, extract), entry -> {
+                    frontier.complete(false);
+                    frontier.stop();
+                });
+        List<PageStage<?>> stages = Arrays.asList(fetch, extract, match, links, output);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stage-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> stages.forEach(PageStage::sample), 100, 100, TimeUnit.MILLISECONDS);
+        sampler.scheduleAtFixedRate(() -> System.err.println(stageDepths(stages)), 10, 10, TimeUnit.SECONDS);
+        for (PageStage<?> stage : stages) {
+            stage.start();
+        }
+        Throwable failure = null;
+        try {
+            CrawlFrontier.Entry entry;
+            while ((entry = frontier.take()) != null) {
+                if (budget.isExhausted()) {
+                    frontier.complete(false);
+                    frontier.stop();
+                    break;
+                }
+                fetch.put(entry);
+            }
+        }
+        catch (Exception e) {
+            failure = e;
+            frontier.stop();
+        }
+        for (PageStage<?> stage : stages) {
+            stage.close();
+            try {
+                stage.await();
+            }
+            catch (Exception | Error e) {
+                if (failure == null) failure = e;
+            }
+        }
+        sampler.shutdownNow();
+        for (PageStage<?> stage : stages) {
+            System.err.println("Stage " + stage.summary());
+        }
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw (Exception) failure;
+        finishFrontier(frontier);
+    }
+
+    /**
+     * Describes the current depths of the queues of the stages.
+     * @param stages The stages in the order the pages pass them.
+     * @return One line of "name depth/capacity" pairs.
+     */
+    private static String stageDepths(List<PageStage<?>> stages) {
+        StringBuilder line = new StringBuilder("Stage queues:");
+        for (PageStage<?> stage : stages) {
+            line.append(' ').append(stage.getName()).append(' ')
+                    .append(stage.getDepth()).append('/').append(stage.getCapacity());
+        }
+        return line.toString();
+    }
+
+    /**
+     * Drops a page whose processing failed in a stage: releases its window, completes it in the frontier
+     * if it was not completed yet and stops the traversal.
+     * @param frontier The frontier of the traversal.
+     * @param page The failed page.
+     */
+    private void abandon(CrawlFrontier frontier, StagedPage page) {
+        page.release();
+        if (!page.completed) {
+            page.completed = true;
+            frontier.complete(true);
+        }
+        frontier.stop();
+    }
+
+    /**
+     * A worker of the fetch stage. It owns a web client with a fixed set of windows; a page is loaded into a free
+     * window and the window stays taken until the links stage is done with the page, so a page is never replaced
+     * while another stage reads it. The JavaScript of a page is stopped before the page is passed on, so neither
+     * the page's own jobs nor the worker's waits change it while another stage reads it. When the stage finishes,
+     * the worker waits for its windows before closing the client.
+     */
+    private final class FetchWorker implements PageStage.Worker<CrawlFrontier.Entry> {
+        /** The frontier of the traversal. */
+        private final CrawlFrontier frontier;
+        /** The stage receiving the loaded pages. */
+        private final PageStage<StagedPage> extract;
+        /** A class object that simulates a web browser, used by this worker only. */
+        private final WebClient client = new WebClient(BrowserVersion.CHROME);
+        /** Windows of the client which hold no page in use. */
+        private final BlockingQueue<WebWindow> windows = new ArrayBlockingQueue<>(WINDOWS_PER_FETCHER);
+
+        /**
+         * Initializes the worker and opens its windows.
+         * @param frontier The frontier of the traversal.
+         * @param extract The stage receiving the loaded pages.
+         */
+        FetchWorker(CrawlFrontier frontier, PageStage<StagedPage> extract) {
+            this.frontier = frontier;
+            this.extract = extract;
+            configureClient(client);
+            for (int i = 0; i < WINDOWS_PER_FETCHER; i++) {
+                windows.add(client.openWindow(null, "stage-" + i));
+            }
+        }
+
+        /**
+         * Loads the page into a free window, stops its JavaScript and passes it to the extract stage. Once its
+         * JavaScript is stopped, the page is only read, by one stage at a time, while this worker loads the next
+         * pages into the other windows. A page which can't be loaded, whose JavaScript can't be stopped or which is
+         * a duplicate of a processed page is completed in the frontier as not visited.
+         * @param entry The page taken from the frontier.
+         * @throws Exception if the worker was interrupted.
+         */
+        @Override
+        public void process(CrawlFrontier.Entry entry) throws Exception {
+            WebWindow window = windows.take();
+            HtmlPage page = fetchPage(client, window, entry.url);
+            if (page != null && !stopJavaScript(window)) page = null;
+            String url = page == null ? null : pageUrlOf(page, entry.url);
+            if (url == null) {
+                windows.put(window);
+                frontier.complete(false);
+                return;
+            }
+            synchronized (urlArray) {
+                urlArray.add(entry.id);
+            }
+            StagedPage staged = new StagedPage(entry, page, window, windows);
+            staged.url = url;
+            extract.put(staged);
+        }
+
+        /**
+         * Waits until all windows are released by the later stages and closes the client.
+         */
+        @Override
+        public void close() {
+            try {
+                for (int i = 0; i < WINDOWS_PER_FETCHER; i++) {
+                    windows.take();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                closeClient(client);
+            }
+        }
+    }
+
+    /**
+     * A page passing through the stages of the staged traversal.
+     */
+    private static final class StagedPage {
+        /** The page as taken from the frontier. */
+        final CrawlFrontier.Entry entry;
+        /** The loaded page, null once its window is released. */
+        HtmlPage page;
+        /** The window holding the page, null once released. */
+        private WebWindow window;
+        /** Free windows of the fetch worker which loaded the page. */
+        private final BlockingQueue<WebWindow> windows;
+        /** Link to the page in the output form. */
+        String url;
+        /** Visible text of the page, from the extract to the match stage. */
+        String text;
+        /** Occurrences of the terms found on the page. */
+        TermCounts matches;
+        /** true once the page is completed in the frontier. */
+        boolean completed;
+
+        /**
+         * Initializes the page.
+         * @param entry The page as taken from the frontier.
+         * @param page The loaded page.
+         * @param window The window holding the page.
+         * @param windows Free windows of the fetch worker which loaded the page.
+         */
+        StagedPage(CrawlFrontier.Entry entry, HtmlPage page, WebWindow window, BlockingQueue<WebWindow> windows) {
+            this.entry = entry;
+            this.page = page;
+            this.window = window;
+            this.windows = windows;
+        }
+
+        /**
+         * Returns the window to the fetch worker, the page is no longer used.
+         */
+        void release() {
+            if (window != null) {
+                windows.offer(window);
+                window = null;
+                page = null;
+            }
+        }
+    }
+
+    /**
+     * Level by level traversal of a distributed crawl. The shards meet at a barrier before every round and exchange
+     * their counters. A level is finished when no shard has pages of the level left, then the links formed by all
+     * shards (including the links forwarded to this shard) become the next level. Within a level the remaining
+     * global page visit budget is split between the shards by {@link ShardRing#allocateVisits}, so the global
+     * maxVisited limit is never exceeded. Every shard sees the same counters and therefore makes the same decision.
+     * When the crawl budget of any shard is used up, all shards stop.
+     * @throws IOException if the connection to a shard was lost.
+     */
+    void parseDistributed() throws IOException {
+        int curDepth = 1;
+        int curIndex = 0;
+        urlQuaCur.clear();
+        while (true) {
+            writerRaw.flush();
+            long[][] state = shardNode.barrier(visited, urlQuaCur.size() - curIndex,
+                    urlQuaFormed.size() + shardNode.getForwarded(), budget.isExhausted() ? 1 : 0);
+            for (String url : shardNode.drainInbox()) {
+                addToFormed(url);
+            }
+            long totalVisited = 0;
+            long totalPending = 0;
+            long totalFormed = 0;
+            long exhausted = 0;
+            long[] pending = new long[state.length];
+            for (int i = 0; i < state.length; i++) {
+                totalVisited += state[i][0];
+                pending[i] = state[i][1];
+                totalPending += state[i][1];
+                totalFormed += state[i][2];
+                exhausted += state[i][3];
+            }
+            if (totalVisited >= maxVisited) {
+                exitStatus = 2;
+                return;
+            }
+            if (exhausted > 0) {
+                exitStatus = 3;
+                return;
+            }
+            if (totalPending == 0) {
+                if (totalFormed == 0) {
+                    exitStatus = 0;
+                    return;
+                }
+                if (curDepth == maxDepth) {
+                    exitStatus = 1;
+                    return;
+                }
+                urlQuaCur.clear();
+                urlQuaCur.addAll(urlQuaFormed);
+                urlQuaFormed.clear();
+                shardNode.resetForwarded();
+                curIndex = 0;
+                curDepth++;
+                continue;
+            }
+            long allowance = ShardRing.allocateVisits(maxVisited - totalVisited, pending)[shardNode.getShardId()];
+            long limit = visited + allowance;
+            while (curIndex < urlQuaCur.size() && visited < limit && !budget.isExhausted()) {
+                String urlProcessed = urlQuaCur.get(curIndex++);
+                urlArray.add(urlProcessed);
+                countMatch(urlProcessed);
+            }
+        }
+    }
+
     /**
      * This method searches for the specified terms on the page located at the passed url, passes the search results
      * to the printToCSV method, and adds links from this page to the UrlQuaFormed if they are not contained in
@@ -220,60 +1159,332 @@ public class WebCrawlerThread {
      * @param url Link to the page to be processed.
      */
     void countMatch(String url) {
-        webClient.waitForBackgroundJavaScriptStartingBefore(timeOutJSBefore);
-        webClient.waitForBackgroundJavaScript(timeOutJS);
-        HtmlPage page;
-        try {
-            page = webClient.getPage(url);
-        } catch (Exception e) {
+        HtmlPage page = fetchPage(webClient, url);
+        if (page == null) {
+            return;
+        }
+        String pageUrl = url;
+        url = pageUrlOf(page, url);
+        if (url == null) {
             return;
         }
         visited++;
-        StringBuilder matches = new StringBuilder();
-        for (String Term : arOfTerms) {
-            Pattern pattern = Pattern.compile(Term, caseSensitive);
-            Matcher matcher = pattern.matcher(page.asText());
+        TermCounts matches = countTerms(textExtractor.extract(page));
+        List<String> links = extractLinks(page, url);
+        recordLinks(pageUrl, url, links);
+        for (String curHref : links) {
+            if (shardNode != null && !shardNode.owns(curHref)) {
+                try {
+                    shardNode.forward(curHref);
+                }
+                catch (IOException e) {
+                    // the connection loss is reported at the next barrier
+                }
+                continue;
+            }
+            addToFormed(curHref);
+        }
+        printToCSV(url, matches);
+    }
+
+    /**
+     * Loads the page located at the passed url with the passed client, after waiting for the background
+     * JavaScript tasks of the previous page. The timeout of the request is derived from the latency of the host.
+     * Transient failures are retried up to the retries limit; pages of a host with an open circuit are skipped.
+     * No request is made once the crawl budget is used up, and no wait lasts beyond the end of the time budget.
+     * @param client A class object that simulates a web browser.
+     * @param url Link to the page to be loaded.
+     * @return The loaded page, or null if the page can't be loaded or is not an HTML page.
+     */
+    HtmlPage fetchPage(WebClient client, String url) {
+        return fetchPage(client, null, url);
+    }
+
+    /**
+     * Loads the page located at the passed url into the passed window, in the same way as
+     * {@link #fetchPage(WebClient, String)}. A page loaded into a given window does not wait for the background
+     * JavaScript of the other windows of the client, the caller settles the JavaScript of the window itself
+     * (see {@link #stopJavaScript(WebWindow)}).
+     * @param client A class object that simulates a web browser.
+     * @param window The window of the client to load the page into, null - the current window.
+     * @param url Link to the page to be loaded.
+     * @return The loaded page, or null if the page can't be loaded or is not an HTML page.
+     */
+    HtmlPage fetchPage(WebClient client, WebWindow window, String url) {
+        if (recordArchive != null) recordArchive.setCurrentPage(url);
+        if (window == null) {
+            client.waitForBackgroundJavaScriptStartingBefore(budget.capTimeout(timeOutJSBefore));
+            client.waitForBackgroundJavaScript(budget.capTimeout(timeOutJS));
+        }
+        String host = HostHealth.hostKeyOf(url);
+        boolean timedOut = false;
+        for (int attempt = 0; ; attempt++) {
+            if (budget.isExhausted()) {
+                return null;
+            }
+            if (!hostHealth.allow(host)) {
+                hostHealth.recordSkipped(host);
+                return null;
+            }
+            client.getOptions().setTimeout(budget.capTimeout(hostHealth.timeoutFor(host, timedOut)));
+            long ticket = 0;
+            if (concurrency != null) {
+                try {
+                    ticket = concurrency.acquire(host);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            long begin = System.currentTimeMillis();
+            try {
+                HtmlPage page;
+                if (window == null) {
+                    page = client.getPage(url);
+                } else {
+                    WebRequest request = new WebRequest(UrlUtils.toUrlUnsafe(url),
+                            client.getBrowserVersion().getHtmlAcceptHeader(),
+                            client.getBrowserVersion().getAcceptEncodingHeader());
+                    request.setCharset(StandardCharsets.UTF_8);
+                    page = client.getPage(window, request);
+                }
+                long latency = System.currentTimeMillis() - begin;
+                long bytes = page.getWebResponse().getContentLength();
+                if (concurrency != null) concurrency.release(host, ticket, latency, null);
+                hostHealth.recordSuccess(host, latency);
+                hostHealth.recordSize(host, bytes);
+                budget.recordPage(latency, bytes);
+                return page;
+            } catch (Exception e) {
+                if (concurrency != null) concurrency.release(host, ticket, System.currentTimeMillis() - begin, e);
+                long delay = hostHealth.recordFailure(host, e, attempt);
+                timedOut = HostHealth.isTimeout(e);
+                if (delay < 0 || attempt >= retries || budget.isExhausted()) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets the background JavaScript of the page in the passed window run as long as before the next page in the
+     * other traversals, then removes all of its jobs, so that nothing changes the page any more. HtmlUnit runs
+     * the jobs of every window on a thread of its own, and a page is read by the later stages on other threads.
+     * @param window A window of a web client holding a loaded page.
+     * @return true if no job of the window is running any more, false if a job is still running after timeOutJS.
+     */
+    boolean stopJavaScript(WebWindow window) {
+        JavaScriptJobManager jobs = window.getJobManager();
+        jobs.waitForJobsStartingBefore(budget.capTimeout(timeOutJSBefore));
+        jobs.waitForJobs(budget.capTimeout(timeOutJS));
+        jobs.removeAllJobs();
+        return jobs.waitForJobs(budget.capTimeout(timeOutJS)) == 0;
+    }
+
+    /**
+     * Counts the occurrences of every term in the text of a page. The text is extracted once per page
+     * and shared by all terms.
+     * @param text Visible text of the page.
+     * @return Occurrences of the terms found on the page.
+     */
+    TermCounts countTerms(CharSequence text) {
+        return countTerms(termEngine, text);
+    }
+
+    /**
+     * Counts the occurrences of every term in the text of a page with the passed engine.
+     * @param engine Term engine of the calling thread, null - the java.util.regex patterns.
+     * @param text Visible text of the page.
+     * @return Occurrences of the terms found on the page.
+     */
+    TermCounts countTerms(TermEngine engine, CharSequence text) {
+        if (engine != null) {
+            return TermCounts.of(engine.count(text));
+        }
+        TermCounts matches = new TermCounts();
+        for (int i = 0; i < termPatterns.length; i++) {
+            Matcher matcher = termPatterns[i].matcher(text);
             int count = 0;
             while (matcher.find()) {
                 count++;
             }
-            matches.append(count).append(",");
+            matches.add(i, count);
         }
-        matches = new StringBuilder(matches.substring(0, matches.length() - 1));
+        return matches;
+    }
+
+    /**
+     * Brings the url of a processed page to the form in which it is written to the statistics file
+     * (a url without a path gets a trailing slash).
+     * @param url Link to the processed page.
+     * @return Link in the output form.
+     */
+    String normalizePageUrl(String url) {
         if (url.indexOf('/', 12) == -1) {
             url = url + '/';
         }
-        String baseUrl = url.substring(0, url.indexOf('/', 12));
+        return url;
+    }
+
+    /**
+     * Collects the links of the passed page. All links are reduced to a single form: fragments are removed,
+     * "www." is removed, protocol-relative, host-relative and path-relative links are made absolute (against the
+     * final URL of the page after redirects when canonical URLs are followed).
+     * @param page The page to collect links from.
+     * @param url Link to the page in the form returned by normalizePageUrl.
+     * @return Links of the page in the order of the anchors (may contain duplicates).
+     */
+    List<String> extractLinks(HtmlPage page, String url) {
+        List<String> links = new ArrayList<>();
+        if (aliases != null) {
+            url = normalizePageUrl(normalizeLink(page.getUrl().toExternalForm(), url));
+        }
         List <HtmlAnchor> anchors = page.getAnchors();
         for (Object o : anchors) {
             HtmlAnchor anchor = (HtmlAnchor) o;
-            String curHref = anchor.getHrefAttribute();
-            if (curHref.length() < 2 || curHref.startsWith("#")) {
-                continue;
-            }
-            if (curHref.contains("#")) {
-                curHref = curHref.substring(0, curHref.indexOf('#'));
+            String curHref = normalizeLink(anchor.getHrefAttribute(), url);
+            if (curHref != null) {
+                links.add(curHref);
             }
-            if (curHref.startsWith("//")) {
-                curHref = curHref.replaceFirst("//", "https://");
-            }
-            if (curHref.startsWith("www.") || curHref.contains("//www.")) {
-                curHref = curHref.replaceFirst("www.", "");
-            }
-            if (curHref.indexOf('/') != -1) if (curHref.substring(0, curHref.indexOf('/')).contains(".")) {
-                curHref = "https://" + curHref;
-            }
-            if (curHref.startsWith("/")) {
-                curHref = baseUrl + curHref;
-            }
-            if (!curHref.contains("://")) {
-                curHref = url.substring(0, url.lastIndexOf('/')) + curHref;
-            }
-            if (!urlArray.contains(curHref) && !urlQuaFormed.contains(curHref) && !urlQuaCur.contains(curHref)) {
-                urlQuaFormed.add(curHref);
+        }
+        return links;
+    }
+
+    /**
+     * Reduces a link found on a page to the single form of the crawler: the fragment is removed, "www." is removed,
+     * a protocol-relative, host-relative or path-relative link is made absolute.
+     * @param curHref The link as written on the page.
+     * @param url Link to the page in the form returned by normalizePageUrl.
+     * @return The link in the single form, null if it points into the page itself.
+     */
+    String normalizeLink(String curHref, String url) {
+        if (curHref.length() < 2 || curHref.startsWith("#")) {
+            return null;
+        }
+        if (curHref.contains("#")) {
+            curHref = curHref.substring(0, curHref.indexOf('#'));
+        }
+        if (curHref.startsWith("//")) {
+            curHref = curHref.replaceFirst("//", "https://");
+        }
+        if (curHref.startsWith("www.") || curHref.contains("//www.")) {
+            curHref = curHref.replaceFirst("www.", "");
+        }
+        if (curHref.indexOf('/') != -1) if (curHref.substring(0, curHref.indexOf('/')).contains(".")) {
+            curHref = "https://" + curHref;
+        }
+        if (curHref.startsWith("/")) {
+            curHref = url.substring(0, url.indexOf('/', 12)) + curHref;
+        }
+        if (!curHref.contains("://")) {
+            curHref = url.substring(0, url.lastIndexOf('/')) + curHref;
+        }
+        return curHref;
+    }
+
+    /**
+     * Returns the link under which a loaded page is processed and reported. With canonical URLs followed, the final
+     * URL after redirects and the canonical URL of the page are registered as its aliases, and the page is dropped
+     * if its URL was already claimed by another page.
+     * @param page The loaded page.
+     * @param url Link the page was requested with.
+     * @return Link to the page in the form returned by normalizePageUrl, null if the page is a duplicate.
+     */
+    String pageUrlOf(HtmlPage page, String url) {
+        if (aliases == null) {
+            return normalizePageUrl(url);
+        }
+        String finalUrl = normalizePageUrl(normalizeLink(page.getUrl().toExternalForm(), normalizePageUrl(url)));
+        String canonical = null;
+        for (DomElement link : page.getElementsByTagName("link")) {
+            String rel = " " + link.getAttribute("rel").toLowerCase(Locale.ROOT).replaceAll("\\s+", " ") + " ";
+            if (rel.contains(" canonical ")) {
+                canonical = normalizeLink(link.getAttribute("href").trim(), finalUrl);
+                break;
             }
         }
-        printToCSV(url, matches.toString());
+        return aliases.claim(normalizePageUrl(url), finalUrl, canonical == null ? null : normalizePageUrl(canonical));
+    }
+
+    /**
+     * Resolves a link found on a page through the known aliases of the pages.
+     * @param url Link found on a page.
+     * @return The link to queue (the page the alias leads to), null if that page was already processed.
+     */
+    String resolveLink(String url) {
+        if (aliases == null) {
+            return url;
+        }
+        String target = aliases.resolve(normalizePageUrl(url));
+        return aliases.isClaimed(target) ? null : target;
+    }
+
+    /**
+     * Adds the passed link to UrlQuaFormed if it is not contained in UrlArray, UrlQuaFormed and UrlQuaCur.
+     * A link to a known alias of a page is replaced by the link to the page.
+     * @param url Link to the page to be processed in the next parse cycle.
+     */
+    void addToFormed(String url) {
+        url = resolveLink(url);
+        if (url == null) {
+            return;
+        }
+        int id = urlStore.intern(url);
+        if (!urlKnown.get(id)) {
+            urlQuaFormed.add(id);
+        }
+    }
+
+    /**
+     * Prints the hosts which failed during the crawl to the standard error stream.
+     */
+    private void printHostSummary() {
+        for (String line : hostHealth.summary()) {
+            System.err.println(line);
+        }
+    }
+
+    /**
+     * Applies the crawler settings to the passed web client.
+     * @param client A class object that simulates a web browser.
+     */
+    private void configureClient(WebClient client) {
+        client.getOptions().setJavaScriptEnabled(enableJS);
+        client.getOptions().setTimeout(timeOut);
+        client.getOptions().setUseInsecureSSL(true);
+        client.getOptions().setThrowExceptionOnScriptError(false);
+        client.setAjaxController(new NicelyResynchronizingAjaxController());
+        client.getOptions().setCssEnabled(false);
+        client.getOptions().setDownloadImages(false);
+        client.getOptions().setGeolocationEnabled(false);
+        if (replayArchive != null) {
+            client.setWebConnection(replayArchive.replayConnection());
+        } else if (recordArchive != null) {
+            client.setWebConnection(recordArchive.recordingConnection(client.getWebConnection()));
+        }
+        if (sharedCache != null) {
+            client.setCache(sharedCache);
+        }
+    }
+
+    /**
+     * Closes the passed web client. A client using the shared cache is given a cache of its own first,
+     * as closing a client clears its cache.
+     * @param client A class object that simulates a web browser.
+     */
+    private void closeClient(WebClient client) {
+        if (sharedCache != null) {
+            client.setCache(new Cache());
+        }
+        client.close();
     }
 
     /**
@@ -287,6 +1498,23 @@ public class WebCrawlerThread {
         writerRaw.flush();
     }
 
+    /**
+     * Outputs passed url and the occurrences of the terms to csv file, in the dense or the sparse form.
+     * A sparse row of a page without occurrences consists of the url alone.
+     * @param url url address (may contain commas)
+     * @param matches Occurrences of the terms found on the page.
+     */
+    void printToCSV(String url, TermCounts matches) {
+        if (!sparse) {
+            printToCSV(url, matches.toDenseString(termPatterns.length));
+        } else if (matches.size() == 0) {
+            writerRaw.println(url.replace(",", "%2C"));
+            writerRaw.flush();
+        } else {
+            printToCSV(url, matches.toSparseString());
+        }
+    }
+
     /**
      * Captures a file for writing throughout the entire process.
      * @throws Exception if having problems grabbing the file
@@ -310,25 +1538,52 @@ public class WebCrawlerThread {
         while (buffReader.ready()) {
             tempCsvTable.add(new CSVTable(buffReader.readLine()));
         }
+        buffReader.close();
+        if (authority != null) scoreByLinks(tempCsvTable);
         Collections.sort(tempCsvTable);
         FileWriter fileWriter = new FileWriter(topFileName, true);
         PrintWriter writer = new PrintWriter(fileWriter);
-        for (int i = 0; i < numToPrintInTopFile; i++) {
+        for (int i = 0; i < numToPrintInTopFile && i < tempCsvTable.size(); i++) {
             writer.println(tempCsvTable.get(i).getLine());
             System.out.println(tempCsvTable.get(i).getLine());
         }
         writer.close();
     }
 
+    /**
+     * Scores the lines by a combination of the occurrences and the link authority of their pages, both scaled
+     * to the maximum over the lines.
+     * @param lines Lines of the raw file.
+     */
+    void scoreByLinks(List<CSVTable> lines) {
+        double[] pageAuthority = new double[lines.size()];
+        double maxMatches = 0;
+        double maxAuthority = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String url = lines.get(i).getUrl();
+            int id = urlStore.lookup(url);
+            if (id < 0) id = urlStore.lookup(url.replace("%2C", ","));
+            pageAuthority[i] = id >= 0 && id < authority.length ? authority[id] : 0;
+            maxMatches = Math.max(maxMatches, lines.get(i).getTotalMatches());
+            maxAuthority = Math.max(maxAuthority, pageAuthority[i]);
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            double matches = maxMatches == 0 ? 0 : lines.get(i).getTotalMatches() / maxMatches;
+            double links = maxAuthority == 0 ? 0 : pageAuthority[i] / maxAuthority;
+            lines.get(i).setScore((1 - rankWeight) * matches + rankWeight * links);
+        }
+    }
+
     /**
      * Prepares the file passed as a parameter for writing. Rebuilds if file already exists,
-     * add table header if printHeader - true.
+     * add table header if printHeader - true. The header of the sparse form names the fields of the pairs
+     * instead of listing the terms.
      * @param fileName The path to the file to perform preparation.
      * @throws Exception if having problems grabbing the file
      */
     void prepareCSV(String fileName) throws Exception {
         PrintWriter writer = new PrintWriter(fileName, "UTF-8");
-        if (printHeader) writer.println("URL," + termString);
+        if (printHeader) writer.println(sparse ? "URL,TermId:Count" : "URL," + termString);
         writer.close();
     }
 
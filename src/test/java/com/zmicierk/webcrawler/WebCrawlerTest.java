@@ -1,8 +1,33 @@
 package com.zmicierk.webcrawler;
 
 import com.ginsberg.junit.exit.ExpectSystemExitWithStatus;
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
 import org.junit.jupiter.api.Test;
 import java.io.*;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -50,6 +75,757 @@ class WebCrawlerTest {
         assertEquals(testCSVTable.getTotalMatches(), 15);
     }
 
+    /**
+     * Checking the correctness of the operation of the TermCounts class (sparse storage, dense and sparse rows),
+     * the ranking of sparse rows by the CSVTable class and the readTermFile, toCsvFields methods of the WebCrawler
+     * class.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void termCountsTest() throws Exception {
+        int[] dense = new int[5000];
+        dense[3] = 2;
+        dense[4999] = 7;
+        TermCounts counts = TermCounts.of(dense);
+        assertEquals(2, counts.size());
+        assertEquals(9, counts.getTotal());
+        assertEquals(4999, counts.getId(1));
+        assertEquals(7, counts.getCount(1));
+        assertEquals("3:2,4999:7", counts.toSparseString());
+        assertEquals("0,0,0,2,0,0", TermCounts.of(new int[] {0, 0, 0, 2, 0, 0}).toDenseString(6));
+        assertEquals("", new TermCounts().toSparseString());
+        assertThrows(IllegalArgumentException.class, () -> counts.add(10, 1));
+        CSVTable sparseRow = new CSVTable("https://en.wikipedia.org/wiki/Elon_Musk," + counts.toSparseString());
+        assertEquals(9, sparseRow.getTotalMatches());
+        CSVTable emptyRow = new CSVTable("https://en.wikipedia.org/wiki/Tesla");
+        assertEquals(0, emptyRow.getTotalMatches());
+        assertEquals("https://en.wikipedia.org/wiki/Tesla", emptyRow.getLine());
+        assertTrue(sparseRow.compareTo(emptyRow) < 0);
+        File termFile = File.createTempFile("terms", ".txt");
+        termFile.deleteOnExit();
+        PrintWriter writer = new PrintWriter(termFile, "UTF-8");
+        writer.println("# vehicles");
+        writer.println("Tesla");
+        writer.println();
+        writer.println("  Elon Musk  ");
+        writer.println("\\d{2,3}");
+        writer.println("\"Musk\"");
+        writer.close();
+        String[] terms = WebCrawler.readTermFile(termFile.getPath());
+        assertArrayEquals(new String[] {"Tesla", "Elon Musk", "\\d{2,3}", "\"Musk\""}, terms);
+        assertEquals("Tesla,Elon Musk,\"\\d{2,3}\",\"\"\"Musk\"\"\"", WebCrawler.toCsvFields(terms));
+    }
+
+    /**
+     * Checking the correctness of the operation of the LinkGraph class (CSR rows without duplicate links and links
+     * to the page itself, PageRank, HITS authority, export) and of the ranking of CSVTable lines by score.
+     */
+    @Test
+    void linkGraphTest() {
+        LinkGraph graph = new LinkGraph();
+        graph.addPage(0, new int[] {2, 1, 2, 0});
+        graph.addPage(1, new int[] {2});
+        graph.addPage(2, new int[] {0});
+        assertEquals(3, graph.getPageCount());
+        assertEquals(4, graph.getEdgeCount());
+        double[] rank = graph.pageRank(3);
+        assertEquals(0.3878, rank[0], 1e-4);
+        assertEquals(0.2148, rank[1], 1e-4);
+        assertEquals(0.3974, rank[2], 1e-4);
+        double[] authority = graph.hits(4);
+        assertEquals(1.0, authority[0] + authority[1] + authority[2] + authority[3], 1e-9);
+        assertTrue(authority[2] > authority[0] && authority[2] > authority[1]);
+        assertEquals(0.0, authority[3]);
+        UrlStore store = new UrlStore();
+        store.intern("https://en.wikipedia.org/wiki/Elon_Musk");
+        store.intern("https://en.wikipedia.org/wiki/Tesla");
+        store.intern("https://en.wikipedia.org/wiki/SpaceX");
+        StringWriter graphFile = new StringWriter();
+        graph.write(new PrintWriter(graphFile), store);
+        assertEquals(String.join(System.lineSeparator(), "nodes 3 edges 4", "https://en.wikipedia.org/wiki/Elon_Musk",
+                "https://en.wikipedia.org/wiki/Tesla", "https://en.wikipedia.org/wiki/SpaceX", "0 1 2", "1 2", "2 0",
+                ""), graphFile.toString());
+        CSVTable linked = new CSVTable("https://en.wikipedia.org/wiki/Tesla,1,1");
+        CSVTable unlinked = new CSVTable("https://en.wikipedia.org/wiki/SpaceX,2,1");
+        assertTrue(unlinked.compareTo(linked) < 0);
+        linked.setScore(0.5 * 2 / 3 + 0.5);
+        unlinked.setScore(0.5);
+        assertTrue(linked.compareTo(unlinked) < 0);
+    }
+
+    /**
+     * Checking the correctness of the operation of the shardOf, allocateVisits methods of the ShardRing class.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void shardRingTest() throws Exception {
+        ShardRing ring = new ShardRing(3);
+        int owner = ring.shardOf("https://en.wikipedia.org/wiki/Elon_Musk");
+        assertEquals(owner, ring.shardOf("https://en.wikipedia.org/wiki/Tesla,_Inc."));
+        assertEquals(owner, new ShardRing(3).shardOf("https://EN.wikipedia.org/"));
+        assertTrue(owner >= 0 && owner < 3);
+        long[] allowance = ShardRing.allocateVisits(10, new long[] {2, 0, 100});
+        assertEquals(2, allowance[0]);
+        assertEquals(0, allowance[1]);
+        assertEquals(8, allowance[2]);
+        allowance = ShardRing.allocateVisits(1, new long[] {5, 5, 5});
+        assertEquals(1, allowance[0] + allowance[1] + allowance[2]);
+    }
+
+    /**
+     * Checking the correctness of the operation of the forward, barrier, sendRows, receiveRows methods of the
+     * ShardNode class with three shards on local ports, and of receiveRows when a shard drops during the merge.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void shardNodeTest() throws Exception {
+        String[] peers = localPeers(3);
+        ShardNode[] nodes = new ShardNode[3];
+        for (int i = 0; i < 3; i++) {
+            nodes[i] = new ShardNode(i, peers);
+        }
+        String[] hosts = new String[3];
+        ShardRing ring = new ShardRing(3);
+        for (int i = 0; hosts[0] == null || hosts[1] == null || hosts[2] == null; i++) {
+            String url = "https://host" + i + ".org/";
+            if (hosts[ring.shardOf(url)] == null) hosts[ring.shardOf(url)] = url;
+        }
+        long[] pending = {0, 3, 10};
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    int id = i;
+                    results.add(executor.submit(() -> runShard(nodes[id], hosts, pending[id])));
+                }
+                List<String> rows = new ArrayList<>(Arrays.asList(hosts[1] + "row,1", hosts[2] + "row,2"));
+                Collections.sort(rows);
+                for (int i = 0; i < 3; i++) {
+                    List<String> inbox = new ArrayList<>();
+                    for (int j = 0; j < 3; j++) {
+                        if (j != i) inbox.add(hosts[i] + "from" + j);
+                    }
+                    assertEquals("[[1, 0, 2, 0], [2, 3, 2, 0], [3, 10, 2, 0]] " + inbox + " [0, 2, 2]"
+                            + (i == 0 ? " " + rows : ""), result(results.get(i)));
+                }
+            });
+            String[] pair = localPeers(2);
+            ShardNode merging = new ShardNode(0, pair);
+            ShardNode dropping = new ShardNode(1, pair);
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                Future<?> connected = executor.submit(() -> {
+                    dropping.connect();
+                    return null;
+                });
+                merging.connect();
+                result(connected);
+                Future<?> merge = executor.submit(() -> {
+                    merging.receiveRows(new PrintWriter(new StringWriter()));
+                    return null;
+                });
+                Thread.sleep(200);
+                dropping.close();
+                ExecutionException e = assertThrows(ExecutionException.class, merge::get);
+                assertEquals("Connection to shard 1 lost", e.getCause().getMessage());
+                assertThrows(IOException.class, () -> merging.barrier(0, 0, 0, 0));
+            });
+            merging.close();
+        }
+        finally {
+            executor.shutdownNow();
+            for (ShardNode node : nodes) {
+                node.close();
+            }
+        }
+    }
+
+    /**
+     * Runs one shard of shardNodeTest: forwards a link to each other shard, meets the others at a barrier, splits
+     * maxVisited = 10 between the shards as the distributed crawl does, and merges the rows on shard 0.
+     * @param node The shard.
+     * @param hosts A link owned by each shard, indexed by shard id.
+     * @param pending The number of pages the shard reports as pending at the barrier.
+     * @return The counters of all shards, the links received and the allowances, for shard 0 also the merged rows.
+     * @throws Exception if the shard failed.
+     */
+    static String runShard(ShardNode node, String[] hosts, long pending) throws Exception {
+        int id = node.getShardId();
+        node.connect();
+        for (int j = 0; j < hosts.length; j++) {
+            if (j == id) continue;
+            node.forward(hosts[j] + "from" + id);
+            node.forward(hosts[j] + "from" + id);
+        }
+        assertEquals(2, node.getForwarded());
+        long[][] state = node.barrier(id + 1, pending, node.getForwarded(), 0);
+        List<String> inbox = node.drainInbox();
+        Collections.sort(inbox);
+        long visited = 0;
+        long[] pendingAll = new long[state.length];
+        for (int i = 0; i < state.length; i++) {
+            visited += state[i][0];
+            pendingAll[i] = state[i][1];
+        }
+        String seen = Arrays.deepToString(state) + " " + inbox + " "
+                + Arrays.toString(ShardRing.allocateVisits(10 - visited, pendingAll));
+        if (id == 0) {
+            StringWriter merged = new StringWriter();
+            node.receiveRows(new PrintWriter(merged));
+            List<String> rows = new ArrayList<>(Arrays.asList(merged.toString().split("\\R")));
+            Collections.sort(rows);
+            return seen + " " + rows;
+        }
+        File raw = File.createTempFile("shard" + id, ".csv");
+        try {
+            Files.write(raw.toPath(), ("URL,apple\n" + hosts[id] + "row," + id + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            node.sendRows(raw.getPath(), true);
+        }
+        finally {
+            raw.delete();
+        }
+        node.close();
+        return seen;
+    }
+
+    /**
+     * Returns the result of a task, rethrowing its failure.
+     * @param future The task.
+     * @param <T> Type of the result.
+     * @return The result of the task.
+     * @throws Exception the failure of the task.
+     */
+    static <T> T result(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Picks free local ports for the shards of a test.
+     * @param count The number of shards.
+     * @return Addresses (localhost:port) of the shards.
+     * @throws IOException if no port is free.
+     */
+    static String[] localPeers(int count) throws IOException {
+        String[] peers = new String[count];
+        for (int i = 0; i < count; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                peers[i] = "localhost:" + socket.getLocalPort();
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Checking the correctness of the operation of the offer, take, complete methods of the CrawlFrontier class.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void crawlFrontierTest() throws Exception {
+        UrlStore store = new UrlStore();
+        CrawlFrontier frontier = new CrawlFrontier(2, 2, store);
+        assertTrue(frontier.offer("https://a.org/", 0));
+        CrawlFrontier.Entry start = frontier.take();
+        assertEquals("https://a.org/", start.url);
+        assertTrue(frontier.offer("https://a.org/deep", 1));
+        assertFalse(frontier.offer("https://a.org/deep", 1));
+        assertFalse(frontier.offer("https://a.org/", 1));
+        assertFalse(frontier.offer("https://a.org/too-deep", 2));
+        assertTrue(frontier.isDepthLimitReached());
+        assertEquals(-1, store.lookup("https://a.org/too-deep"));
+        assertTrue(frontier.offer("https://a.org/other", 1));
+        CrawlFrontier.Entry next = frontier.take();
+        assertEquals(1, next.depth);
+        frontier.complete(true);
+        frontier.complete(false);
+        assertNotNull(frontier.take());
+        frontier.complete(true);
+        assertEquals(2, frontier.getVisited());
+        assertNull(frontier.take());
+    }
+
+    /**
+     * Checking the correctness of the operation of the timeoutFor, recordSuccess, recordFailure, allow methods
+     * of the HostHealth class.
+     */
+    @Test
+    void hostHealthTest() {
+        HostHealth health = new HostHealth(7500, 3);
+        assertEquals(7500, health.timeoutFor("a.org"));
+        for (int i = 0; i < 10; i++) {
+            health.recordSuccess("a.org", 100);
+        }
+        assertEquals(2000, health.timeoutFor("a.org"));
+        assertEquals(2000, health.timeoutFor("a.org", false));
+        assertEquals(7500, health.timeoutFor("a.org", true));
+        assertTrue(HostHealth.isTimeout(new RuntimeException(new java.net.SocketTimeoutException())));
+        assertFalse(HostHealth.isTimeout(new java.net.ConnectException()));
+        assertEquals("a.org:8080", HostHealth.hostKeyOf("http://A.org:8080/page"));
+        assertTrue(health.recordFailure("b.org", new java.net.SocketTimeoutException(), 0) >= 0);
+        assertEquals(-1, health.recordFailure("b.org", new java.net.ConnectException(), 1));
+        assertTrue(health.allow("b.org"));
+        health.recordFailure("b.org", new java.net.ConnectException(), 0);
+        assertFalse(health.allow("b.org"));
+        assertTrue(health.allow("a.org"));
+    }
+
+    /**
+     * Checking the correctness of the operation of the crawl budget (exhaustion and choice of the cheapest page)
+     */
+    @Test
+    void crawlBudgetTest() {
+        HostHealth health = new HostHealth(7500, 3);
+        CrawlBudget budget = new CrawlBudget(0, 1000, health);
+        budget.start();
+        assertFalse(budget.isLow());
+        assertEquals(7500, budget.capTimeout(7500));
+        health.recordSize("big.org", 500);
+        health.recordSize("small.org", 10);
+        budget.recordPage(100, 510);
+        assertFalse(budget.isExhausted());
+        budget.recordPage(100, 400);
+        assertTrue(budget.isLow());
+        String[] queue = {"http://big.org/1", "http://small.org/1", "http://big.org/2"};
+        assertEquals(1, budget.selectCheapest(i -> queue[i], queue.length));
+        budget.recordPage(100, 100);
+        assertTrue(budget.isExhausted());
+        assertTrue(new CrawlBudget(1000, 0, health).capTimeout(7500) <= 1000);
+    }
+
+    /**
+     * Checking the correctness of the operation of the DFA term engine (the same counts as java.util.regex,
+     * fallback of unsupported terms, linear time on a pathological term)
+     */
+    @Test
+    void termEngineTest() {
+        String[] terms = {"Java", "James Gosling", "jav[a-z]+", "(a|ab)(c|bcd)", "\\d{2,3}", "x+?"};
+        String text = "Java, JAVA and javascript; James Gosling wrote java in 1995. abcd abc 12345 xxx";
+        TermEngine engine = new TermEngine(terms, false);
+        int[] counts = engine.count(text);
+        for (int i = 0; i < terms.length; i++) {
+            Matcher matcher = Pattern.compile(terms[i], Pattern.CASE_INSENSITIVE).matcher(text);
+            int expected = 0;
+            while (matcher.find()) {
+                expected++;
+            }
+            assertEquals(expected, counts[i], terms[i]);
+        }
+        assertEquals(1, engine.getFallbacks().size());
+        assertTrue(engine.getFallbacks().get(0).contains("lazy quantifier"));
+        assertEquals(1, new TermEngine(new String[] {"Java"}, true).count(text)[0]);
+        StringBuilder pathological = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            pathological.append('a');
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertEquals(0, new TermEngine(new String[] {"(a+)+b"}, false).count(pathological)[0]);
+            TermEngine emptyLoops = new TermEngine(new String[] {"(a*)*b", "(a?)+b"}, false);
+            assertTrue(emptyLoops.getFallbacks().isEmpty());
+            assertArrayEquals(new int[] {0, 0}, emptyLoops.count(pathological));
+            assertEquals(100000, new TermEngine(new String[] {"a*b|a"}, false).copy().count(pathological)[0]);
+        });
+    }
+
+    /**
+     * Checking the correctness of the operation of the PageStage class (every item is processed once, the bounded
+     * queue holds up the producer, the first failure is rethrown and the failed item is reported)
+     * @throws Exception if test failed.
+     */
+    @Test
+    void pageStageTest() throws Exception {
+        AtomicLong sum = new AtomicLong();
+        CountDownLatch gate = new CountDownLatch(1);
+        PageStage<Integer> stage = new PageStage<>("sum", 2, 3, () -> item -> {
+            gate.await();
+            sum.addAndGet(item);
+        }, item -> fail("Item " + item + " failed"));
+        stage.start();
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 1; i <= 100; i++) {
+                    stage.put(i);
+                }
+            }
+            catch (InterruptedException ignored) {
+            }
+        });
+        producer.start();
+        producer.join(500);
+        assertTrue(producer.isAlive());
+        assertEquals(3, stage.getDepth());
+        gate.countDown();
+        producer.join();
+        stage.close();
+        stage.await();
+        assertEquals(5050, sum.get());
+        assertTrue(stage.summary().contains("processed    100"));
+        List<Integer> failed = new ArrayList<>();
+        PageStage<Integer> failing = new PageStage<>("fail", 1, 4, () -> item -> {
+            if (item == 2) throw new Exception("Item 2");
+        }, failed::add);
+        failing.start();
+        for (int i = 1; i <= 3; i++) {
+            failing.put(i);
+        }
+        failing.close();
+        Exception exception = assertThrows(Exception.class, failing::await);
+        assertEquals("Item 2", exception.getMessage());
+        assertEquals(Collections.singletonList(2), failed);
+        List<Integer> overflowed = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong after = new AtomicLong();
+        PageStage<Integer> erring = new PageStage<>("error", 2, 4, () -> item -> {
+            if (item == 2) throw new StackOverflowError();
+            after.incrementAndGet();
+        }, overflowed::add);
+        erring.start();
+        for (int i = 1; i <= 6; i++) {
+            erring.put(i);
+        }
+        erring.close();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertThrows(StackOverflowError.class, erring::await);
+        });
+        assertEquals(Collections.singletonList(2), overflowed);
+        assertEquals(5, after.get());
+    }
+
+    /**
+     * Checking the correctness of the operation of the PageArchive class (recording of the responses with their
+     * depth and parent, replay from the mapped segments, 404 for pages which are not in the archive)
+     * @throws Exception if test failed.
+     */
+    @Test
+    void pageArchiveTest() throws Exception {
+        File directory = Files.createTempDirectory("archive").toFile();
+        UrlStore store = new UrlStore();
+        PageArchive archive = PageArchive.openForRecording(directory.getPath(), store);
+        MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(new URL("http://localhost/"),
+                "<html><body><a href=\"http://localhost/tesla\">Tesla</a></body></html>");
+        connection.setResponse(new URL("http://localhost/tesla"),
+                "<html><body>Tesla \u0422\u0435\u0441\u043b\u0430</body></html>".getBytes(StandardCharsets.UTF_8),
+                200, "OK", "text/html; charset=UTF-8", Collections.emptyList());
+        WebClient client = new WebClient();
+        client.getOptions().setJavaScriptEnabled(false);
+        client.setWebConnection(archive.recordingConnection(connection));
+        archive.noteStart("http://localhost/");
+        archive.setCurrentPage("http://localhost/");
+        client.getPage("http://localhost/");
+        archive.noteLinks("http://localhost/", Collections.singletonList("http://localhost/tesla"));
+        archive.setCurrentPage("http://localhost/tesla");
+        client.getPage("http://localhost/tesla");
+        archive.close();
+        client.close();
+        assertEquals(2, archive.getRecordCount());
+        PageArchive replay = PageArchive.openForReplay(directory.getPath());
+        assertEquals(2, replay.getRecordCount());
+        assertEquals("http://localhost/", replay.getStartUrl());
+        WebClient replayClient = new WebClient();
+        replayClient.getOptions().setJavaScriptEnabled(false);
+        replayClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+        replayClient.setWebConnection(replay.replayConnection());
+        HtmlPage page = replayClient.getPage("http://localhost/tesla");
+        assertEquals("Tesla \u0422\u0435\u0441\u043b\u0430", page.getBody().asText());
+        assertEquals(404, replayClient.getPage("http://localhost/spacex").getWebResponse().getStatusCode());
+        replayClient.close();
+        String segment = new String(Files.readAllBytes(new File(directory, "segment-00000.warc")
+                .toPath()), StandardCharsets.UTF_8);
+        assertTrue(segment.contains("X-Crawl-Depth: 1\r\nX-Crawl-Parent: http://localhost/\r\n"));
+        assertTrue(new File(directory, "segment-00000.warc").delete());
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * Checking the correctness of the operation of the acquire and release methods of the FetchConcurrency class
+     * (slow start, one cut per congested round trip, cut on the error rate, the highest limit).
+     * @throws Exception if test failed.
+     */
+    @Test
+    void fetchConcurrencyTest() throws Exception {
+        assertThrows(Exception.class, () -> new FetchConcurrency(0));
+        FetchConcurrency concurrency = new FetchConcurrency(8);
+        assertEquals(1, concurrency.getLimit());
+        for (int i = 0; i < 2; i++) {
+            concurrency.release("a.org", concurrency.acquire("a.org"), 10, null);
+        }
+        assertEquals(2, concurrency.getLimit());
+        long[] tickets = {concurrency.acquire("a.org"), concurrency.acquire("a.org")};
+        for (long ticket : tickets) {
+            concurrency.release("a.org", ticket, 10, null);
+        }
+        assertEquals(4, concurrency.getLimit());
+        tickets = new long[] {concurrency.acquire("a.org"), concurrency.acquire("a.org"), concurrency.acquire("a.org")};
+        long first = concurrency.acquire("a.org");
+        for (long ticket : tickets) {
+            concurrency.release("a.org", ticket, 10, null);
+        }
+        assertEquals(7, concurrency.getLimit());
+        long second = concurrency.acquire("a.org");
+        assertEquals(2, concurrency.getInFlight());
+        concurrency.release("a.org", first, 7500, new java.net.SocketTimeoutException());
+        assertEquals(3, concurrency.getLimit());
+        concurrency.release("a.org", second, 7500, new java.net.SocketTimeoutException());
+        assertEquals(3, concurrency.getLimit());
+        assertEquals(1, concurrency.getDecreases());
+        concurrency.release("a.org", concurrency.acquire("a.org"), 10, null);
+        assertEquals(3, concurrency.getLimit());
+        concurrency.release("a.org", concurrency.acquire("a.org"), 10, new Exception("Not an HTML page"));
+        assertEquals(3, concurrency.getLimit());
+        concurrency.release("b.org", concurrency.acquire("b.org"), 10, new java.net.ConnectException());
+        assertEquals(1, concurrency.getLimit());
+        assertEquals(2, concurrency.getDecreases());
+        assertEquals(0, concurrency.getInFlight());
+        FetchConcurrency bounded = new FetchConcurrency(2);
+        for (int i = 0; i < 5; i++) {
+            bounded.release("a.org", bounded.acquire("a.org"), 10, null);
+        }
+        assertEquals(2, bounded.getLimit());
+    }
+
+    /**
+     * Checking the correctness of the operation of the SharedCache class (HTTP cache headers, least recently used
+     * eviction by size, cached compiled objects).
+     * @throws Exception if test failed.
+     */
+    @Test
+    void sharedCacheTest() throws Exception {
+        assertThrows(Exception.class, () -> new SharedCache(0));
+        SharedCache cache = new SharedCache(1000);
+        Object compiled = new Object();
+        assertTrue(cache.cacheIfPossible(cacheRequest("a.js"),
+                cacheResponse("a.js", "application/javascript", "max-age=3600"), compiled));
+        assertTrue(cache.cacheIfPossible(cacheRequest("b.js"),
+                cacheResponse("b.js", "application/javascript", "max-age=3600"), null));
+        assertSame(compiled, cache.getCachedObject(cacheRequest("a.js")));
+        assertTrue(cache.cacheIfPossible(cacheRequest("c.js"),
+                cacheResponse("c.js", "application/javascript", "public, max-age=3600"), null));
+        assertNotNull(cache.getCachedResponse(cacheRequest("a.js")));
+        assertNull(cache.getCachedResponse(cacheRequest("b.js")));
+        assertNotNull(cache.getCachedResponse(cacheRequest("c.js")));
+        assertEquals(800, cache.getBytes());
+        assertFalse(cache.cacheIfPossible(cacheRequest("d.js"),
+                cacheResponse("d.js", "application/javascript", "no-store"), null));
+        assertFalse(cache.cacheIfPossible(cacheRequest("e.js"),
+                cacheResponse("e.js", "application/javascript", "no-cache, max-age=3600"), null));
+        assertFalse(cache.cacheIfPossible(cacheRequest("f.html"),
+                cacheResponse("f.html", "text/html", "max-age=3600"), null));
+        assertFalse(cache.cacheIfPossible(cacheRequest("g.js"),
+                cacheResponse("g.js", "application/javascript", "max-age=0"), null));
+        assertTrue(cache.summary().contains("1 of 1 scripts reused compiled (100%)"));
+        assertTrue(cache.summary().contains("3 stored, 1 evicted"));
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(cache);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+            SharedCache restored = (SharedCache) in.readObject();
+            assertEquals(0, restored.getSize());
+            assertTrue(restored.cacheIfPossible(cacheRequest("a.js"),
+                    cacheResponse("a.js", "application/javascript", "max-age=3600"), null));
+        }
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Creates a GET request of a file of http://localhost/.
+     * @param file Name of the file.
+     * @return The request.
+     * @throws Exception if the url is invalid.
+     */
+    static WebRequest cacheRequest(String file) throws Exception {
+        return new WebRequest(new URL("http://localhost/" + file));
+    }
+
+    /**
+     * Creates a response of 400 bytes to the request of a file of http://localhost/.
+     * @param file Name of the file.
+     * @param contentType Content type of the response.
+     * @param cacheControl Value of the Cache-Control header.
+     * @return The response.
+     * @throws Exception if the url is invalid.
+     */
+    static WebResponse cacheResponse(String file, String contentType, String cacheControl) throws Exception {
+        List<NameValuePair> headers = new ArrayList<>();
+        headers.add(new NameValuePair("Content-Type", contentType));
+        headers.add(new NameValuePair("Cache-Control", cacheControl));
+        return new WebResponse(new WebResponseData(new byte[400], 200, "OK", headers), cacheRequest(file), 0);
+    }
+
+    /**
+     * Checking the correctness of the operation of the claim, resolve, isClaimed methods of the UrlAliases class.
+     */
+    @Test
+    void urlAliasesTest() {
+        UrlAliases aliases = new UrlAliases(new UrlStore());
+        assertEquals("https://en.wikipedia.org/wiki/Elon_Musk", aliases.claim("https://en.wikipedia.org/wiki/Musk",
+                "https://en.wikipedia.org/wiki/Elon_Musk", null));
+        assertEquals("https://en.wikipedia.org/wiki/Elon_Musk", aliases.resolve("https://en.wikipedia.org/wiki/Musk"));
+        assertTrue(aliases.isClaimed("https://en.wikipedia.org/wiki/Elon_Musk"));
+        assertNull(aliases.claim("https://en.wikipedia.org/wiki/Elon_Musk?lang=en",
+                "https://en.wikipedia.org/wiki/Elon_Musk?lang=en", "https://en.wikipedia.org/wiki/Elon_Musk"));
+        assertEquals("https://en.wikipedia.org/wiki/Elon_Musk",
+                aliases.resolve("https://en.wikipedia.org/wiki/Elon_Musk?lang=en"));
+        assertEquals("https://en.wikipedia.org/wiki/Tesla", aliases.resolve("https://en.wikipedia.org/wiki/Tesla"));
+        assertFalse(aliases.isClaimed("https://en.wikipedia.org/wiki/Tesla"));
+        assertEquals("https://en.wikipedia.org/wiki/Tesla", aliases.claim("https://en.wikipedia.org/wiki/Tesla",
+                "https://en.wikipedia.org/wiki/Tesla", null));
+        assertEquals("Aliases: 1 redirects, 1 canonical links, 1 duplicate pages dropped, 2 links resolved to known " +
+                "pages", aliases.summary());
+    }
+
+    /**
+     * Checking the correctness of the operation of the readRobots and parseDate methods of the SitemapReader class.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void sitemapReaderTest() throws Exception {
+        WebClient client = new WebClient();
+        MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(new URL("http://localhost/robots.txt"), "User-agent: *\nSitemap: /index.xml\n",
+                "text/plain");
+        connection.setResponse(new URL("http://localhost/index.xml"), "<?xml version=\"1.0\"?><sitemapindex "
+                + "xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\"><sitemap><loc>http://localhost/pages.xml.gz"
+                + "</loc><lastmod>2024-06-01</lastmod></sitemap><sitemap><loc>http://localhost/old.xml</loc>"
+                + "<lastmod>2020-01-01</lastmod></sitemap></sitemapindex>", "application/xml");
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">"
+                    + "<url><loc>http://localhost/a</loc><lastmod>2024-02-01T10:00:00+00:00</lastmod></url>"
+                    + "<url><loc>http://localhost/b</loc><lastmod>2023-12-31</lastmod></url>"
+                    + "<url><loc> http://localhost/c </loc></url><url><loc>ftp://localhost/d</loc></url>"
+                    + "</urlset>").getBytes(StandardCharsets.UTF_8));
+        }
+        connection.setResponse(new URL("http://localhost/pages.xml.gz"), gzip.toByteArray(), 200, "OK",
+                "application/gzip", Collections.emptyList());
+        client.setWebConnection(connection);
+        List<String> seeded = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        SitemapReader reader = new SitemapReader(client, SitemapReader.parseDate("2024-01-01"));
+        reader.readRobots("http://localhost/start", seeded::add, skipped::add);
+        assertEquals(Arrays.asList("http://localhost/a", "http://localhost/c"), seeded);
+        assertEquals(Collections.singletonList("http://localhost/b"), skipped);
+        assertEquals("Sitemaps: 2 read (0 failed), 2 pages seeded, 1 unchanged pages skipped", reader.summary());
+        assertEquals(1704067200000L, SitemapReader.parseDate("2024"));
+        assertEquals(1704067200000L, SitemapReader.parseDate("2024-01-01T02:00:00+02:00"));
+        assertEquals(Long.MIN_VALUE, SitemapReader.parseDate("yesterday"));
+        client.close();
+    }
+
+    /**
+     * Checking the correctness of the operation of the pageUrlOf, resolveLink methods of the WebCrawlerThread class
+     * (the URL after a redirect and the canonical link are the key of a page, the duplicates are dropped).
+     * @throws Exception if test failed.
+     */
+    @Test
+    void pageUrlOfTest() throws Exception {
+        File directory = Files.createTempDirectory("aliases").toFile();
+        PageArchive archive = PageArchive.openForRecording(directory.getPath(), new UrlStore());
+        MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(new URL("http://localhost/"), "<html><body>Tesla</body></html>");
+        WebClient client = new WebClient();
+        client.setWebConnection(archive.recordingConnection(connection));
+        archive.noteStart("http://localhost/");
+        archive.setCurrentPage("http://localhost/");
+        client.getPage("http://localhost/");
+        archive.close();
+        client.close();
+        WebCrawlerThread thread = new WebCrawlerThread(10, 2, 0, 0, 1, 7500,
+                new File(directory, "top.csv").getPath(), new File(directory, "raw.csv").getPath(),
+                "http://localhost/", "Tesla", new String[] {"Tesla"}, true, false, false,
+                PageArchive.openForReplay(directory.getPath()));
+        connection.setResponse(new URL("http://localhost/old"), "", 301, "Moved Permanently", "text/html",
+                Collections.singletonList(new NameValuePair("Location", "http://localhost/new")));
+        connection.setResponse(new URL("http://localhost/new"), "<html><body>Tesla</body></html>");
+        connection.setResponse(new URL("http://localhost/model?x=1"), "<html><head>"
+                + "<link rel=\"stylesheet\" href=\"/style.css\"><link rel=\"Alternate  CANONICAL\" href=\" /model \">"
+                + "</head><body>Model S</body></html>");
+        connection.setResponse(new URL("http://localhost/model"), "<html><head><link rel=\"canonical\">"
+                + "</head><body>Model S</body></html>");
+        thread.webClient.setWebConnection(connection);
+        assertEquals("http://localhost/old", thread.pageUrlOf(thread.fetchPage(thread.webClient,
+                "http://localhost/old"), "http://localhost/old"));
+        thread.setCanonical(true);
+        assertEquals("http://localhost/new", thread.pageUrlOf(thread.fetchPage(thread.webClient,
+                "http://localhost/old"), "http://localhost/old"));
+        assertNull(thread.resolveLink("http://localhost/old"));
+        assertNull(thread.pageUrlOf(thread.fetchPage(thread.webClient, "http://localhost/new"),
+                "http://localhost/new"));
+        assertEquals("http://localhost/model", thread.pageUrlOf(thread.fetchPage(thread.webClient,
+                "http://localhost/model?x=1"), "http://localhost/model?x=1"));
+        assertNull(thread.resolveLink("http://localhost/model"));
+        assertNull(thread.pageUrlOf(thread.fetchPage(thread.webClient, "http://localhost/model"),
+                "http://localhost/model"));
+        assertEquals("http://localhost/tesla", thread.resolveLink("http://localhost/tesla"));
+        File graph = new File(directory, "graph.txt");
+        thread.setGraphFile(graph.getPath());
+        thread.recordLinks("http://localhost", "http://localhost/",
+                Arrays.asList("http://localhost", "http://localhost/old", "http://localhost/tesla"));
+        thread.rankLinks();
+        List<String> lines = Files.readAllLines(graph.toPath());
+        int[] ids = {thread.urlStore.lookup("http://localhost/new"), thread.urlStore.lookup("http://localhost/tesla")};
+        Arrays.sort(ids);
+        assertEquals(thread.urlStore.lookup("http://localhost/") + " " + ids[0] + " " + ids[1],
+                lines.get(lines.size() - 1));
+        assertEquals(-1, thread.urlStore.lookup("http://localhost"));
+        thread.webClient.close();
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * Checking the correctness of the operation of the extract method of the TextExtractor class.
+     * @throws Exception if test failed.
+     */
+    @Test
+    void textExtractorTest() throws Exception {
+        String html = "<html><head><title>Title</title><style>p {}</style></head><body>"
+                + "<nav>Menu</nav><p>Elon  <b>Musk</b></p><script>var hidden = 1;</script>"
+                + "<div hidden>Hidden</div><span style=\"display: none\">None</span><p>Tesla</p>"
+                + "<footer>Footer</footer></body></html>";
+        WebClient client = new WebClient();
+        MockWebConnection connection = new MockWebConnection();
+        connection.setDefaultResponse(html);
+        client.setWebConnection(connection);
+        HtmlPage page = client.getPage("http://localhost/");
+        assertEquals("Title\nMenu\nElon Musk\nTesla\nFooter",
+                new TextExtractor(TextExtractor.Scope.WHOLE).extract(page).toString());
+        assertEquals("Menu\nElon Musk\nTesla\nFooter",
+                new TextExtractor(TextExtractor.Scope.BODY).extract(page).toString());
+        assertEquals("Elon Musk\nTesla", new TextExtractor(TextExtractor.Scope.MAIN).extract(page).toString());
+        client.close();
+    }
+
+    /**
+     * Checking the correctness of the operation of the intern, lookup, get methods of the UrlStore class.
+     */
+    @Test
+    void urlStoreTest() {
+        UrlStore store = new UrlStore();
+        String[] urls = new String[100];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = (i % 3 == 0 ? "https://en.wikipedia.org/wiki/Page_" : "http://example.com/a/b?q=") + i + "\u00e9";
+            assertEquals(i, store.intern(urls[i]));
+        }
+        assertEquals(7, store.intern(urls[7]));
+        assertEquals(urls.length, store.size());
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(urls[i], store.get(i));
+            assertEquals(i, store.lookup(urls[i]));
+        }
+        assertEquals(-1, store.lookup("https://en.wikipedia.org/wiki/Page_"));
+        assertEquals(-1, store.lookup("ftp://unknown.org/"));
+        assertEquals("https://en.wikipedia.org", UrlStore.hostPrefix("https://en.wikipedia.org"));
+    }
+
     /**
      * Checking the correctness of the operation of the prepareCSV method of the WebCrawler class.
      * Requires an up-to-date file:"act_preptest.csv"